@@ -0,0 +1,474 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import javax.imageio.ImageIO;
+
+
+/**
+ * Microbenchmarks for the hot conversion paths
+ * 
+ * <p>
+ *   Usage: {@code java -cp util-say.jar:bench/classes se.kth.maandree.utilsay.Benchmark
+ *   [--forks n] [--warmup n] [--iterations n] [--time ms] [benchmark[/size]...]}
+ * </p>
+ * <p>
+ *   Each benchmark is run with a small, a medium and a huge input in {@code --forks}
+ *   new JVM:s (3 by default, 0 to run in this JVM). Each JVM performs {@code --warmup}
+ *   iterations (5 by default) that are discarded, and {@code --iterations} measured
+ *   iterations (10 by default); an iteration repeats the benchmark for {@code --time}
+ *   milliseconds (500 by default). Only the benchmarked call is timed, not the
+ *   preparation of its input. The inputs are generated from a fixed seed so that
+ *   they are the same in every version.
+ * </p>
+ * <p>
+ *   One line is printed for each benchmark and size, with tab separated fields:
+ *   micro, benchmark name, size, number of measured iterations, mean, standard
+ *   deviation and minimum time per operation in nanoseconds, and operations per
+ *   second.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class Benchmark
+{
+    /**
+     * Non-constructor
+     */
+    private Benchmark()
+    {
+	assert false : "This class [Benchmark] is not meant to be instansiated.";
+    }
+    
+    
+    
+    /**
+     * The names of the benchmarks
+     */
+    private static final String[] BENCHMARKS = { "exportPony", "matchColour", "toLab", "importPony" };
+    
+    /**
+     * The names of the input sizes
+     */
+    private static final String[] SIZES = { "small", "medium", "huge" };
+    
+    /**
+     * The height of the generated ponies, for each size
+     */
+    private static final int[] HEIGHTS = { 20, 60, 400 };
+    
+    /**
+     * The width of the generated ponies, for each size
+     */
+    private static final int[] WIDTHS = { 40, 120, 800 };
+    
+    /**
+     * The number of distinct colours to match or convert, for each size
+     */
+    private static final int[] COLOURS = { 256, 4096, 32768 };
+    
+    /**
+     * The seed for the generated inputs
+     */
+    private static final long SEED = 0x7574696C2D736179L;
+    
+    /**
+     * The results of the benchmarked calls are added to this value
+     * so that the calls cannot be optimised away
+     */
+    public static volatile long sink = 0;
+    
+    
+    
+    /**
+     * This is the main entry point of the benchmarks
+     * 
+     * @param  args  Startup arguments
+     * 
+     * @throws  Exception  On error
+     */
+    public static void main(String[] args) throws Exception
+    {
+	int forks = 3, warmup = 5, iterations = 10, time = 500;
+	ArrayList<String> filters = new ArrayList<String>();
+	
+	for (int i = 0, n = args.length; i < n; i++)
+	    if (args[i].equals("--fork") && (i + 5 < n))
+	    {   double[] samples = measure(args[i + 1], args[i + 2], Common.parseInteger(args[i + 3]), Common.parseInteger(args[i + 4]), Common.parseInteger(args[i + 5]));
+		for (final double sample : samples)
+		    System.out.println(sample);
+		System.out.flush();
+		return;
+	    }
+	    else if (args[i].equals("--forks") && (i + 1 < n))       forks      = Math.max(0, Common.parseInteger(args[++i], forks));
+	    else if (args[i].equals("--warmup") && (i + 1 < n))      warmup     = Math.max(0, Common.parseInteger(args[++i], warmup));
+	    else if (args[i].equals("--iterations") && (i + 1 < n))  iterations = Math.max(1, Common.parseInteger(args[++i], iterations));
+	    else if (args[i].equals("--time") && (i + 1 < n))        time       = Math.max(1, Common.parseInteger(args[++i], time));
+	    else
+		filters.add(args[i]);
+	
+	boolean failed = false;
+	for (final String benchmark : BENCHMARKS)
+	    for (final String size : SIZES)
+		if (selected(filters, benchmark, size))
+		{   double[] samples = forks == 0 ? measure(benchmark, size, warmup, iterations, time)
+						  : fork(benchmark, size, forks, warmup, iterations, time);
+		    if (samples == null)
+			failed = true;
+		    else
+			report(benchmark, size, samples);
+		}
+	if (failed)
+	    System.exit(1);
+    }
+    
+    
+    /**
+     * Check whether a benchmark has been selected
+     * 
+     * @param   filters    The benchmarks, or benchmarks and sizes, selected by the user, empty for all
+     * @param   benchmark  The name of the benchmark
+     * @param   size       The name of the input size
+     * @return             Whether the benchmark should be run for the size
+     */
+    private static boolean selected(ArrayList<String> filters, String benchmark, String size)
+    {
+	if (filters.isEmpty())
+	    return true;
+	for (final String filter : filters)
+	    if (filter.equals(benchmark) || filter.equals(benchmark + "/" + size))
+		return true;
+	return false;
+    }
+    
+    
+    /**
+     * Run a benchmark in new JVM:s
+     * 
+     * @param   benchmark   The name of the benchmark
+     * @param   size        The name of the input size
+     * @param   forks       The number of JVM:s to start, one after another
+     * @param   warmup      The number of iterations to discard in each JVM
+     * @param   iterations  The number of iterations to measure in each JVM
+     * @param   time        The duration of each iteration, in milliseconds
+     * @return              The time per operation, in nanoseconds, for each measured iteration,
+     *                      {@code null} if a JVM failed
+     * 
+     * @throws  IOException           On I/O error
+     * @throws  InterruptedException  If the thread is interrupted
+     */
+    private static double[] fork(String benchmark, String size, int forks, int warmup, int iterations, int time) throws IOException, InterruptedException
+    {
+	String java = System.getProperty("java.home") + "/bin/java";
+	String classpath = System.getProperty("java.class.path");
+	ArrayList<Double> samples = new ArrayList<Double>();
+	
+	for (int i = 0; i < forks; i++)
+	{   ProcessBuilder builder = new ProcessBuilder(java, "-cp", classpath, Benchmark.class.getName(), "--fork", benchmark, size,
+							Integer.toString(warmup), Integer.toString(iterations), Integer.toString(time));
+	    builder.redirectErrorStream(true);
+	    Process process = builder.start();
+	    process.getOutputStream().close();
+	    BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+	    for (String line; (line = in.readLine()) != null;)
+		try
+		{   samples.add(Double.valueOf(line));
+		}
+		catch (final NumberFormatException err)
+		{   System.err.println(line);
+		}
+	    if (process.waitFor() != 0)
+	    {   System.err.println("\033[01;31mutil-say: error: benchmark " + benchmark + "/" + size + " failed\033[00m");
+		return null;
+	}   }
+	
+	double[] rc = new double[samples.size()];
+	for (int i = 0, n = rc.length; i < n; i++)
+	    rc[i] = samples.get(i).doubleValue();
+	return rc;
+    }
+    
+    
+    /**
+     * Run a benchmark in this JVM
+     * 
+     * @param   benchmark   The name of the benchmark
+     * @param   size        The name of the input size
+     * @param   warmup      The number of iterations to discard
+     * @param   iterations  The number of iterations to measure
+     * @param   time        The duration of each iteration, in milliseconds
+     * @return              The time per operation, in nanoseconds, for each measured iteration
+     * 
+     * @throws  Exception  On error
+     */
+    private static double[] measure(String benchmark, String size, int warmup, int iterations, int time) throws Exception
+    {
+	Workload workload = createWorkload(benchmark);
+	workload.setUp(Arrays.asList(SIZES).indexOf(size));
+	
+	double[] samples = new double[iterations];
+	for (int i = -warmup; i < iterations; i++)
+	{   long elapsed = 0, ops = 0, end = System.nanoTime() + time * 1000000L;
+	    while ((ops == 0) || (System.nanoTime() < end))
+	    {   workload.prepare();
+		long start = System.nanoTime();
+		long result = workload.run();
+		elapsed += System.nanoTime() - start;
+		sink += result;
+		ops++;
+	    }
+	    if (i >= 0)
+		samples[i] = (double)elapsed / ops;
+	}
+	return samples;
+    }
+    
+    
+    /**
+     * Print the result of a benchmark
+     * 
+     * @param  benchmark  The name of the benchmark
+     * @param  size       The name of the input size
+     * @param  samples    The time per operation, in nanoseconds, for each measured iteration
+     */
+    private static void report(String benchmark, String size, double[] samples)
+    {
+	int n = samples.length;
+	double sum = 0.0, min = Double.POSITIVE_INFINITY;
+	for (final double sample : samples)
+	{   sum += sample;
+	    min = Math.min(min, sample);
+	}
+	double mean = sum / n, variance = 0.0;
+	for (final double sample : samples)
+	    variance += (sample - mean) * (sample - mean);
+	double stddev = n > 1 ? Math.sqrt(variance / (n - 1)) : 0.0;
+	
+	System.out.println(String.format(Locale.ROOT, "micro\t%s\t%s\t%d\t%.1f\t%.1f\t%.1f\t%.1f",
+					 benchmark, size, Integer.valueOf(n), Double.valueOf(mean), Double.valueOf(stddev),
+					 Double.valueOf(min), Double.valueOf(1000000000.0 / mean)));
+	System.out.flush();
+    }
+    
+    
+    /**
+     * Create the workload for a benchmark
+     * 
+     * @param   benchmark  The name of the benchmark
+     * @return             The workload
+     */
+    private static Workload createWorkload(String benchmark)
+    {
+	if (benchmark.equals("exportPony"))   return new ExportWorkload();
+	if (benchmark.equals("matchColour"))  return new ColourWorkload(true);
+	if (benchmark.equals("toLab"))        return new ColourWorkload(false);
+	if (benchmark.equals("importPony"))   return new ImageWorkload();
+	throw new IllegalArgumentException("unknown benchmark: " + benchmark);
+    }
+    
+    
+    /**
+     * Generate a pony, with runs of colours in the shape of an ellipse on a transparent background
+     * 
+     * @param   height  The height of the pony
+     * @param   width   The width of the pony
+     * @param   random  Random number generator
+     * @return          The pony
+     */
+    private static Pony generatePony(int height, int width, Random random)
+    {
+	int[] colours = new int[24];
+	for (int i = 0; i < colours.length; i++)
+	    colours[i] = Colour.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+	int transparent = Colour.NONE;
+	
+	int[][] pixels = new int[height << 1][width];
+	double cy = height, cx = width / 2.0;
+	for (int y = 0, h = height << 1; y < h; y++)
+	{   int colour = Colour.NONE;
+	    for (int x = 0, run = 0; x < width; x++, run--)
+	    {   double dy = (y - cy) / cy, dx = (x - cx) / cx;
+		if (dy * dy + dx * dx > 1.0)
+		{   pixels[y][x] = transparent;
+		    run = 0;
+		    continue;
+		}
+		if (run <= 0)
+		{   run = 1 + random.nextInt(12);
+		    colour = ((y > 0) && (pixels[y - 1][x] != transparent) && random.nextBoolean())
+			     ? pixels[y - 1][x] : colours[random.nextInt(colours.length)];
+		}
+		pixels[y][x] = colour;
+	}   }
+	
+	Pony pony = new Pony(height, width, "Benchmark pony", new String[][] {{"PONY", "benchmark"}});
+	for (int y = 0; y < height; y++)
+	    for (int x = 0; x < width; x++)
+		pony.rows[y].set(x, Pony.Cell.PIXELS, pixels[y << 1][x], pixels[(y << 1) | 1][x], null);
+	return pony;
+    }
+    
+    
+    
+    /**
+     * A benchmarked operation and its input
+     */
+    private static abstract class Workload
+    {
+	/**
+	 * Create the input
+	 * 
+	 * @param  size  The index of the input size
+	 * 
+	 * @throws  Exception  On error
+	 */
+	public abstract void setUp(int size) throws Exception;
+	
+	/**
+	 * Prepare for an operation, this is not timed
+	 * 
+	 * @throws  Exception  On error
+	 */
+	public void prepare() throws Exception
+	{
+	    // Do nothing
+	}
+	
+	/**
+	 * Perform the operation
+	 * 
+	 * @return  A value that depends on the result
+	 * 
+	 * @throws  Exception  On error
+	 */
+	public abstract long run() throws Exception;
+    }
+    
+    
+    /**
+     * {@link Ponysay#exportPony(Pony)} to a temporary file with the default options,
+     * the module and the pony are recreated before each operation because
+     * exporting changes both
+     */
+    private static class ExportWorkload extends Workload
+    {
+	private Pony pony;
+	private Pony copy;
+	private Ponysay module;
+	private HashMap<String, String> flags;
+	
+	public void setUp(int size) throws Exception
+	{   this.pony = generatePony(HEIGHTS[size], WIDTHS[size], new Random(SEED));
+	    File file = File.createTempFile("util-say-bench", ".pony");
+	    file.deleteOnExit();
+	    this.flags = new HashMap<String, String>();
+	    this.flags.put("file", file.getPath());
+	}
+	
+	public void prepare()
+	{   this.module = new Ponysay(this.flags);
+	    this.copy = this.pony.clone();
+	}
+	
+	public long run() throws Exception
+	{   this.module.exportPony(this.copy);
+	    return this.copy.rows.length;
+	}
+    }
+    
+    
+    /**
+     * {@link PonysaySubmodule#matchColour(int, int[], int, int, double)} against the
+     * 240 non-system colours of the xterm palette, or {@link Colour#toLab(int, int, int, double)},
+     * for a set of distinct colours, with the default chroma weight
+     */
+    private static class ColourWorkload extends Workload
+    {
+	public ColourWorkload(boolean match)
+	{   this.match = match;
+	}
+	
+	private final boolean match;
+	private int[] colours;
+	private int[] palette;
+	
+	public void setUp(int size)
+	{   Random random = new Random(SEED);
+	    HashSet<Integer> seen = new HashSet<Integer>();
+	    this.colours = new int[COLOURS[size]];
+	    for (int i = 0; i < this.colours.length;)
+	    {   int rgb = random.nextInt(1 << 24);
+		if (seen.add(Integer.valueOf(rgb)))
+		    this.colours[i++] = 0xFF000000 | rgb;
+	    }
+	    this.palette = new int[256];
+	    for (int i = 0; i < 256; i++)
+	    {   Colour colour = new Colour(i);
+		this.palette[i] = colour.toARGB();
+	}   }
+	
+	public long run()
+	{   long rc = 0;
+	    if (this.match)
+		for (final int colour : this.colours)
+		    rc += PonysaySubmodule.matchColour(colour, this.palette, 16, 256, 1.0);
+	    else
+		for (final int colour : this.colours)
+		    rc += (long)(Colour.toLab(Colour.red(colour), Colour.green(colour), Colour.blue(colour), 1.0)[0]);
+	    return rc;
+	}
+    }
+    
+    
+    /**
+     * {@link Image#importPony(InputStream)} of a PNG image of a generated pony,
+     * magnified twice, with the default options
+     */
+    private static class ImageWorkload extends Workload
+    {
+	private byte[] data;
+	
+	public void setUp(int size) throws Exception
+	{   Pony pony = generatePony(HEIGHTS[size], WIDTHS[size], new Random(SEED));
+	    int h = pony.rows.length, w = pony.rows[0].width;
+	    BufferedImage image = new BufferedImage(w << 1, h << 2, BufferedImage.TYPE_INT_ARGB);
+	    for (int y = 0; y < h; y++)
+		for (int x = 0; x < w; x++)
+		{   int upper = pony.rows[y].upper[x], lower = pony.rows[y].lower[x];
+		    for (int i = 0; i < 4; i++)
+			image.setRGB((x << 1) | (i & 1), (y << 2) | (i >> 1), upper);
+		    for (int i = 0; i < 4; i++)
+			image.setRGB((x << 1) | (i & 1), (y << 2) | 2 | (i >> 1), lower);
+		}
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    ImageIO.write(image, "png", out);
+	    this.data = out.toByteArray();
+	}
+	
+	public long run() throws Exception
+	{   Pony pony = (new Image(new HashMap<String, String>())).importPony(new ByteArrayInputStream(this.data));
+	    return pony.rows.length;
+	}
+    }
+    
+}
+
@@ -0,0 +1,202 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Batch conversion, runs the same conversion for many input files in one process
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class Batch
+{
+    /**
+     * Non-constructor
+     */
+    private Batch()
+    {
+	assert false : "This class [Batch] is not meant to be instansiated.";
+    }
+    
+    
+    
+    /**
+     * Run a conversion for every input file
+     * 
+     * <p>
+     *   The files are converted in a {@link Pipeline}, the global options {@code --threads},
+     *   {@code --readers}, {@code --decoders}, {@code --transformers}, {@code --encoders}
+     *   and {@code --queue} select the sizes of its thread pools and queues.
+     * </p>
+     * 
+     * @param   conversion  The conversion, the import's {@code --file} will be replaced with
+     *                      each input file and the exports' {@code --file} are used as templates
+     * @param   source      A directory, or a manifest file with one input file per line, {@code -} for stdin
+     * @return              The number of input files that failed
+     * 
+     * @throws  IOException  If the inputs cannot be listed
+     */
+    public static int run(Conversion conversion, String source) throws IOException
+    {
+	HashMap<String, String> globals = conversion.globals;
+	int threads = globals.containsKey("threads") ? option(globals, "threads", 0) : 1;
+	if (threads < 1)
+	    threads = Runtime.getRuntime().availableProcessors();
+	
+	Pipeline pipeline = new Pipeline(option(globals, "readers", 1),
+					 option(globals, "decoders", threads),
+					 option(globals, "transformers", threads),
+					 option(globals, "encoders", threads),
+					 option(globals, "queue", threads << 1));
+	
+	return pipeline.run(conversion, listInputs(source, conversion.stdin, conversion.directory));
+    }
+    
+    
+    /**
+     * Get a numerical global option
+     * 
+     * @param   globals  The global options
+     * @param   name     The name of the option
+     * @param   value    The default value
+     * @return           The value of the option, {@code value} if it is not set or not a number
+     */
+    private static int option(HashMap<String, String> globals, String name, int value)
+    {
+	String rc = globals.get(name);
+	return rc == null ? value : Common.parseInteger(rc, value);
+    }
+    
+    
+    /**
+     * Create the conversion for one input file
+     * 
+     * @param   conversion  The conversion template
+     * @param   input       The input file
+     * @return              The conversion for the input file
+     */
+    public static Conversion prepare(Conversion conversion, String input)
+    {
+	final Conversion rc = conversion.clone();
+	if (rc.inparams != null)
+	    rc.inparams.put("file", input);
+	for (final HashMap<String, String> params : rc.outparams)
+	{   String file = params.get("file");
+	    if ((file == null) || file.equals("-"))
+		continue;
+	    params.put("file", file = expand(file, input));
+	    File parent = (new File(file)).getParentFile();
+	    if (parent != null)
+		parent.mkdirs();
+	}
+	return rc;
+    }
+    
+    
+    /**
+     * Expand an output file template
+     * 
+     * <p>
+     *   {@code %p} is replaced with the input file, {@code %d} with its directory,
+     *   {@code %f} with its basename, {@code %n} with its basename without the
+     *   extension and {@code %%} with a {@code %}.
+     * </p>
+     * 
+     * @param   template  The template
+     * @param   input     The input file
+     * @return            The output file
+     */
+    public static String expand(String template, String input)
+    {
+	String dir = input.contains("/") ? input.substring(0, input.lastIndexOf('/')) : ".";
+	String base = input.contains("/") ? input.substring(input.lastIndexOf('/') + 1) : input;
+	String name = base.lastIndexOf('.') > 0 ? base.substring(0, base.lastIndexOf('.')) : base;
+	
+	StringBuilder rc = new StringBuilder();
+	for (int i = 0, n = template.length(); i < n; i++)
+	{   char c = template.charAt(i);
+	    if ((c != '%') || (i + 1 == n))
+		rc.append(c);
+	    else
+		switch (c = template.charAt(++i))
+		{   case 'p':  rc.append(input);  break;
+		    case 'd':  rc.append(dir);    break;
+		    case 'f':  rc.append(base);   break;
+		    case 'n':  rc.append(name);   break;
+		    default:
+			if (c != '%')
+			    rc.append('%');
+			rc.append(c);
+			break;
+	}	}
+	return rc.toString();
+    }
+    
+    
+    /**
+     * List the input files of a batch
+     * 
+     * @param   source     A directory, or a manifest file with one input file per line, {@code -} for stdin
+     * @param   stdin      The stream to read if {@code source} is {@code -}, it will not be closed
+     * @param   directory  The directory that relative input files in a manifest are relative to, {@code null} for the working directory
+     * @return             The input files
+     * 
+     * @throws  IOException  If the inputs cannot be listed
+     */
+    public static String[] listInputs(String source, InputStream stdin, String directory) throws IOException
+    {
+	File file = new File(source);
+	ArrayList<String> rc = new ArrayList<String>();
+	
+	if (file.isDirectory())
+	{   String[] names = file.list();
+	    if (names == null)
+		throw new IOException("Cannot list directory: " + source);
+	    Arrays.sort(names);
+	    String dir = source.endsWith("/") ? source : (source + "/");
+	    for (final String name : names)
+		if ((name.startsWith(".") == false) && (new File(dir + name)).isFile())
+		    rc.add(dir + name);
+	}
+	else
+	{   InputStream in = source.equals("-") ? stdin : new BufferedInputStream(new FileInputStream(file));
+	    try
+	    {   Scanner sc = new Scanner(in, "UTF-8");
+		while (sc.hasNextLine())
+		{   String line = sc.nextLine().trim();
+		    if (line.isEmpty() || line.startsWith("#"))
+			continue;
+		    if ((directory != null) && (line.equals("-") == false) && (line.startsWith("/") == false))
+			line = directory + "/" + line;
+		    rc.add(line);
+	    }   }
+	    finally
+	    {   if (in != stdin)
+		    in.close();
+	}   }
+	
+	String[] _rc = new String[rc.size()];
+	rc.toArray(_rc);
+	return _rc;
+    }
+    
+}
@@ -0,0 +1,267 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+
+/**
+ * Buffered UTF-8 decoder that reads a stream in large blocks and decodes it in bulk
+ * 
+ * <p>
+ *   Large regular files are memory-mapped if the stream is a {@link FileInputStream},
+ *   other streams are read in blocks of {@link #BLOCK} bytes, which a {@link BufferedInputStream}
+ *   passes through to the stream it wraps. Malformed sequences are decoded as
+ *   ponysay has always decoded them: a leading byte is followed by all continuation
+ *   bytes after it, whatever number of bytes the leading byte announces, and they
+ *   are counted rather than reported one by one, see {@link #getMalformed()}.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class CodePointReader
+{
+    /**
+     * The size of the blocks that are read by default
+     */
+    public static final int BLOCK = 1 << 16;
+    
+    /**
+     * Files with at least this many bytes left are memory-mapped
+     */
+    private static final long MAP_THRESHOLD = 1 << 20;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  in  The stream to read, it will not be closed
+     */
+    public CodePointReader(InputStream in)
+    {
+	this(in, BLOCK);
+	if (in instanceof FileInputStream)
+	    try
+	    {   FileChannel channel = ((FileInputStream)in).getChannel();
+		long position = channel.position(), size = channel.size();
+		if ((size - position >= MAP_THRESHOLD) && (size - position <= Integer.MAX_VALUE))
+		{   this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size - position);
+		    channel.position(size);
+		}
+	    }
+	    catch (final IOException err)
+	    {   /* Not a regular file, read it in blocks */
+		this.mapped = null;
+	    }
+    }
+    
+    /**
+     * Constructor, the stream is never memory-mapped, this is
+     * intended for when only the beginning of the stream is read
+     * 
+     * @param  in     The stream to read, it will not be closed
+     * @param  block  The size of the blocks that are read
+     */
+    public CodePointReader(InputStream in, int block)
+    {
+	this.in = in;
+	this.block = new byte[block];
+    }
+    
+    
+    
+    /**
+     * The stream to read
+     */
+    private final InputStream in;
+    
+    /**
+     * The rest of the file, if memory-mapped
+     */
+    private ByteBuffer mapped = null;
+    
+    /**
+     * Read but not yet decoded bytes
+     */
+    private byte[] block;
+    
+    /**
+     * The position of the next byte in {@link #block}
+     */
+    private int pos = 0;
+    
+    /**
+     * The end of the read bytes in {@link #block}
+     */
+    private int end = 0;
+    
+    /**
+     * The number of malformed sequences that have been decoded
+     */
+    private int malformed = 0;
+    
+    
+    
+    /**
+     * Read more bytes into {@link #block}, keeping the bytes that have not been used
+     * 
+     * @param   n  The number of unused bytes that is needed
+     * @return     Whether there are {@code n} unused bytes, fewer if the end of the stream was reached
+     * 
+     * @throws  IOException  On I/O error
+     */
+    private boolean fill(int n) throws IOException
+    {
+	if (this.pos > 0)
+	{   System.arraycopy(this.block, this.pos, this.block, 0, this.end -= this.pos);
+	    this.pos = 0;
+	}
+	while (this.end < n)
+	{   int got;
+	    if (this.mapped != null)
+	    {   got = Math.min(this.mapped.remaining(), this.block.length - this.end);
+		this.mapped.get(this.block, this.end, got);
+		if (got == 0)
+		    got = -1;
+	    }
+	    else
+		got = this.in.read(this.block, this.end, this.block.length - this.end);
+	    if (got < 0)
+		return false;
+	    this.end += got;
+	}
+	return true;
+    }
+    
+    
+    /**
+     * Check whether the next bytes are some bytes, without reading them
+     * 
+     * @param   prefix  The bytes, at most the block size
+     * @return          Whether the next bytes are {@code prefix}
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public boolean startsWith(byte[] prefix) throws IOException
+    {
+	if ((this.end - this.pos < prefix.length) && (this.fill(prefix.length) == false))
+	    return false;
+	for (int i = 0, n = prefix.length; i < n; i++)
+	    if (this.block[this.pos + i] != prefix[i])
+		return false;
+	return true;
+    }
+    
+    
+    /**
+     * Read a byte without decoding it
+     * 
+     * @return  The byte, -1 at the end of the stream
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public int readByte() throws IOException
+    {
+	if ((this.pos == this.end) && (this.fill(1) == false))
+	    return -1;
+	return this.block[this.pos++] & 255;
+    }
+    
+    
+    /**
+     * Read and decode characters
+     * 
+     * @param   buf  Output buffer for the characters, in UTF-32
+     * @param   off  The offset in {@code buf} of the first character
+     * @param   len  The maximum number of characters to read
+     * @return       The number of read characters, -1 at the end of the stream
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public int read(int[] buf, int off, int len) throws IOException
+    {
+	long[] stats = Stats.begin();
+	int rc = this.decode(buf, off, len);
+	Stats.end(Stats.DECODE, stats);
+	return rc;
+    }
+    
+    
+    /**
+     * Read and decode characters, without recording statistics
+     * 
+     * @param   buf  The buffer to read into
+     * @param   off  The offset in the buffer
+     * @param   len  The maximum number of characters to read
+     * @return       The number of read characters, -1 at the end of the stream
+     * 
+     * @throws  IOException  On I/O error
+     */
+    private int decode(int[] buf, int off, int len) throws IOException
+    {
+	int i = off, e = off + len;
+	byte[] block = this.block;
+	while (i < e)
+	{   if ((this.pos == this.end) && (this.fill(1) == false))
+		break;
+	    int p = this.pos, n = Math.min(this.end - p, e - i);
+	    
+	    /* Everything that is ASCII does not need decoding */
+	    for (int b; (n > 0) && ((b = block[p]) >= 0); n--)
+	    {   buf[i++] = b;
+		p++;
+	    }
+	    this.pos = p;
+	    if ((n == 0) || (i == e))
+		continue;
+	    
+	    int c = block[this.pos++] & 255;
+	    int m = 0;
+	    while ((c & 0x80) == 0x80)
+	    {   c <<= 1;
+		m++;
+	    }
+	    c = (c & 255) >> m--;
+	    for (int d; ((this.pos < this.end) || this.fill(1)) && (((d = block[this.pos]) & 0xC0) == 0x80); this.pos++)
+	    {   c = (c << 6) | (d & 0x3F);
+		m--;
+	    }
+	    if (m != 0)
+		this.malformed++;
+	    buf[i++] = c;
+	}
+	return i == off ? -1 : i - off;
+    }
+    
+    
+    /**
+     * Get the number of malformed sequences that have been decoded
+     * 
+     * @return  The number of malformed sequences
+     */
+    public int getMalformed()
+    {
+	return this.malformed;
+    }
+    
+}
+
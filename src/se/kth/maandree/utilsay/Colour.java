@@ -338,6 +338,125 @@ public class Colour
     
     
     
+    /**
+     * Packed colour value for no colour, fully transparent black cannot be told apart from it
+     */
+    public static final int NONE = 0;
+    
+    /**
+     * Pack an opaque colour into an ARGB integer
+     * 
+     * @param   red    The red   intensity [0–255]
+     * @param   green  The green intensity [0–255]
+     * @param   blue   The blue  intensity [0–255]
+     * @return         The colour as {@code 0xAARRGGBB}
+     */
+    public static int rgb(final int red, final int green, final int blue)
+    {
+        return rgba(red, green, blue, 255);
+    }
+    
+    /**
+     * Pack a colour into an ARGB integer
+     * 
+     * @param   red    The red   intensity [0–255]
+     * @param   green  The green intensity [0–255]
+     * @param   blue   The blue  intensity [0–255]
+     * @param   alpha  The opacity [0–255]
+     * @return         The colour as {@code 0xAARRGGBB}
+     */
+    public static int rgba(final int red, final int green, final int blue, final int alpha)
+    {
+        return ((alpha & 255) << 24) | ((red & 255) << 16) | ((green & 255) << 8) | (blue & 255);
+    }
+    
+    /**
+     * Get the red intensity of a packed colour
+     * 
+     * @param   argb  The colour as {@code 0xAARRGGBB}
+     * @return        The red intensity [0–255]
+     */
+    public static int red(final int argb)
+    {
+        return (argb >>> 16) & 255;
+    }
+    
+    /**
+     * Get the green intensity of a packed colour
+     * 
+     * @param   argb  The colour as {@code 0xAARRGGBB}
+     * @return        The green intensity [0–255]
+     */
+    public static int green(final int argb)
+    {
+        return (argb >>> 8) & 255;
+    }
+    
+    /**
+     * Get the blue intensity of a packed colour
+     * 
+     * @param   argb  The colour as {@code 0xAARRGGBB}
+     * @return        The blue intensity [0–255]
+     */
+    public static int blue(final int argb)
+    {
+        return argb & 255;
+    }
+    
+    /**
+     * Get the opacity of a packed colour
+     * 
+     * @param   argb  The colour as {@code 0xAARRGGBB}
+     * @return        The opacity [0–255]
+     */
+    public static int alpha(final int argb)
+    {
+        return argb >>> 24;
+    }
+    
+    /**
+     * Get the packed form of this colour
+     * 
+     * @return  The colour as an opaque {@code 0xAARRGGBB}
+     */
+    public int toARGB()
+    {
+        return rgb(this.red, this.green, this.blue);
+    }
+    
+    /**
+     * Get a shared boxed instance of a packed colour
+     * 
+     * <p>
+     *   Boxes are kept in a small direct mapped pool, so the few distinct colours
+     *   in a pony are only allocated once. Racing threads at worst replace each
+     *   other's entries, so no locking is needed.
+     * </p>
+     * 
+     * @param   argb  The colour as {@code 0xAARRGGBB}
+     * @return        The colour, boxed
+     */
+    public static Integer box(final int argb)
+    {
+        final int i = (argb ^ (argb >>> 11) ^ (argb >>> 22)) & (BOXES - 1);
+        final Integer box = boxes[i];
+        if ((box != null) && (box.intValue() == argb))
+            return box;
+        return boxes[i] = Integer.valueOf(argb);
+    }
+    
+    /**
+     * The size of {@link #boxes}, a power of two
+     */
+    private static final int BOXES = 1 << 10;
+    
+    /**
+     * Pool for {@link #box(int)}
+     */
+    private static final Integer[] boxes = new Integer[BOXES];
+    
+    
+    
     /**
      * System colour initialisation index counter
      */
@@ -38,300 +38,125 @@ public class Common
     
     
     /**
-     * Place a balloon in the top left of a {@link Pony} and create a link
+     * Place a balloon in the top left of a {@link Viewport} and create a link
      * 
-     * @param  pony   The pony to edit
+     * @param  view   The viewport to edit, the pony is not modified
      * @param  space  The additional space at the top
      */
-    public static void insertBalloon(Pony pony, int space)
+    public static void insertBalloon(Viewport view, int space)
     {
-	int y = 0, x = 0, h = pony.matrix.length;
+	final int BOTH = Pony.Row.UPPER | Pony.Row.LOWER;
+	int y = 0, x = 0, h = view.height;
 	outer:
 	    for (; y <= h; y++)
 	    {   if (y == h)
 		{   y = x = -1;
 		    break;
 		}
-		int w = pony.matrix[y].length;
-		for (x = 0; x < w; x++)
-		{   Pony.Cell cell = pony.matrix[y][x];
-		    int character = cell == null ? ' ' : cell.character;
+		for (x = 0; x < view.width; x++)
+		{   int character = view.getCharacter(y, x);
 		    if (character >= 0)
 		    {   if ((character != ' ') && (character != ' '))
 			    break outer;
 		    }
 		    else if (character == Pony.Cell.PIXELS)
-			if ((cell.upperColour != null) && (cell.lowerColour != null))
+			if ((view.getFlags(y, x) & BOTH) == BOTH)
 			    break outer;
 	    }   }
 	
 	if (y >= 0)
-	{   System.arraycopy(pony.matrix, 0, pony.matrix = new Pony.Cell[h + 1 + space][], 1 + space, h);
-	    System.arraycopy(pony.metamatrix, 0, pony.metamatrix = new Pony.Meta[h + 1 + space][][], 1 + space, h);
-	    int w = pony.matrix[1 + space].length;
-	    for (int i = 0, mw = w + 1; i <= space; i++)
-	    {   pony.matrix[i] = new Pony.Cell[w];
-		pony.metamatrix[i] = new Pony.Meta[mw][];
-	    }
-	    pony.height = h += 1 + space;
+	{   view.pad(0, 0, 1 + space, 0);
 	    y += 1 + space;
-	    if (y > x)
-		for (int i = 0; i < h; i++)
-		{   w = pony.matrix[i].length;
-		    System.arraycopy(pony.matrix[i], 0, pony.matrix[i] = new Pony.Cell[w], 0, w);
-		    System.arraycopy(pony.metamatrix[i], 0, pony.metamatrix[i] = new Pony.Meta[w + 1][], 0, w + 1);
-		}
 	    x -= y;
 	    if (x < -1)
 		x = -1;
-	    
-	    for (int i = 1; i < y; i++)
-		pony.matrix[i][x + i] = new Pony.Cell(Pony.Cell.NNW_SSE, null, null, null);
-	}
-	else if ((h == 0) || (pony.matrix[0].length == 0))
-	{   pony.height = pony.width = 1;
-	    pony.matrix = new Pony.Cell[1][1];
-	    pony.metamatrix = new Pony.Meta[1][1][];
+	    view.setLink(x, 1, y);
 	}
+	else if ((h == 0) || (view.width == 0))
+	    view.blank(1, 1);
 	
 	Pony.Balloon speechballoon = new Pony.Balloon(null, null, new Integer(Math.max(x, 5)), null, null, null, Pony.Balloon.NONE);
-	if (pony.metamatrix[0][0] == null)
-	    pony.metamatrix[0][0] = new Pony.Meta[] { speechballoon };
+	Pony.Meta[] metacell = view.getMeta(0, 0);
+	if (metacell == null)
+	    metacell = new Pony.Meta[] { speechballoon };
 	else
-	{   System.arraycopy(pony.metamatrix[0][0], 0, pony.metamatrix[0][0] = new Pony.Meta[pony.metamatrix[0][0].length + 1], 1, pony.metamatrix[0][0].length - 1);
-	    pony.metamatrix[0][0][0] = speechballoon;
+	{   System.arraycopy(metacell, 0, metacell = new Pony.Meta[metacell.length + 1], 1, metacell.length - 1);
+	    metacell[0] = speechballoon;
 	}
+	view.setMeta(0, 0, metacell);
     }
     
     
     /**
-     * Change the margins in a {@link Pony}
+     * Change the margins in a {@link Viewport}
      * 
-     * @param   pony    The the pony, the attributes {@link Pony#matrix} and {@link Pony#metamatrix} but not {@link Pony#height} nor  {@link Pony#width} will be updated
+     * @param   view    The viewport, it is padded but not cropped, the pony is not modified
      * @param   left    The left margin, negative for unmodified
      * @param   right   The right margin, negative for unmodified
      * @param   top     The top margin, negative for unmodified
      * @param   bottom  The bottom margin, negative for unmodified
-     * @return          The update {@code {left, right, top, bottom}}
+     * @return          The number of columns or rows to crop, {@code {left, right, top, bottom}}
      */
-    public static int[] changeMargins(Pony pony, int left, int right, int top, int bottom)
+    public static int[] changeMargins(Viewport view, int left, int right, int top, int bottom)
     {
+	long[] stats = Stats.begin();
+	
 	/*if ((bottom >= 0) && (top >= 0))
 	    bottom += top;*/
 	
-	Pony.Cell[][] matrix = pony.matrix;
-	Pony.Meta[][][] metamatrix = pony.metamatrix;
+	int height = view.height, width = view.width;
+	
+	/* Columns that are cropped away are not solid in any row,
+	 * so the top and bottom only depend on whether rows are empty. */
+	int[] first = new int[height];
+	int[] last = new int[height];
+	for (int y = 0; y < height; y++)
+	{   first[y] = view.firstSolid(y);
+	    last[y] = first[y] < 0 ? -1 : view.lastSolid(y);
+	}
 	
 	if (left >= 0)
 	{
-	    int cur = 0;
-	    outer:
-	        for (int n = matrix[0].length; cur < n; cur++)
-		    for (int j = 0, m = matrix.length; j < m; j++)
-		    {
-			boolean cellpass = true;
-			Pony.Cell cell = matrix[j][cur];
-			if (cell != null)
-			    if ((cell.character != ' ') || (cell.lowerColour != null))
-				if ((cell.character != Pony.Cell.PIXELS) || (cell.lowerColour != null) || (cell.upperColour != null))
-				    cellpass = false;
-			Pony.Meta[] meta = metamatrix[j][cur];
-			if ((meta != null) && (meta.length != 0))
-			{   for (int k = 0, l = meta.length; k < l; k++)
-				if ((meta[k] != null) && ((meta[k] instanceof Pony.Store) == false))
-				    if ((cellpass == false) || (meta[k] instanceof Pony.Balloon))
-					break outer;
-			}
-			else
-			    if (cellpass == false)
-				break outer;
-		    }
+	    int cur = width;
+	    for (int y = 0; y < height; y++)
+		if ((first[y] >= 0) && (first[y] < cur))
+		    cur = first[y];
 	    left -= cur;
-	    // if (left < 0)
-	    // {
-	    //     int w = matrix[0].length;
-	    //	   for (int j = 0, n = matrix.length; j < n; j++)
-	    //	   {   System.arraycopy(matrix[j], 0, matrix[j] = new Pony.Cell[w - left], -left, w);
-	    //	       System.arraycopy(metamatrix[j], 0, metamatrix[j] = new Pony.Meta[w + 1 - left][], -left, w + 1);
-	    //	   }
-	    //	   left = 0;
-	    // }
 	}
 	else
 	    left = 0;
 	if (right >= 0)
 	{
-	    int cur = 0;
-	    outer:
-	        for (int n = matrix[0].length - 1; cur <= n; cur++)
-		    for (int j = 0, m = matrix.length; j < m; j++)
-		    {
-			boolean cellpass = true;
-			Pony.Cell cell = matrix[j][n - cur];
-			if (cell != null)
-			    if ((cell.character != ' ') || (cell.lowerColour != null))
-				if ((cell.character != Pony.Cell.PIXELS) || (cell.lowerColour != null) || (cell.upperColour != null))
-				    cellpass = false;
-			Pony.Meta[] meta = metamatrix[j][n - cur];
-			if ((meta != null) && (meta.length != 0))
-			{   for (int k = 0, l = meta.length; k < l; k++)
-				if ((meta[k] != null) && ((meta[k] instanceof Pony.Store) == false))
-				    if ((cellpass == false) || (meta[k] instanceof Pony.Balloon))
-					break outer;
-			}
-			else
-			    if (cellpass == false)
-				break outer;
-		    }
+	    int cur = width;
+	    for (int y = 0; y < height; y++)
+		if ((last[y] >= 0) && (width - 1 - last[y] < cur))
+		    cur = width - 1 - last[y];
 	    right -= cur;
-	    // if (right < 0)
-	    // {
-	    //     int w = matrix[0].length;
-	    //     for (int j = 0, n = matrix.length; j < n; j++)
-	    //     {   System.arraycopy(matrix[j], 0, matrix[j] = new Pony.Cell[w - right], 0, w);
-	    //         System.arraycopy(metamatrix[j], 0, metamatrix[j] = new Pony.Meta[w + 1 - right][], 0, w + 1);
-	    //     }
-	    //     right = 0;
-	    // }
 	}
 	else
 	    right = 0;
 	if (top >= 0)
 	{
-	    int cur = 0, m = Math.min(matrix[0].length + right, matrix[0].length);
-	    outer:
-	        for (int n = matrix.length; cur < n; cur++)
-		{   Pony.Cell[] row = matrix[cur];
-		    Pony.Meta[][] metarow = metamatrix[cur];
-		    for (int j = Math.max(-left, 0); j < m; j++)
-		    {
-			boolean cellpass = true;
-			Pony.Cell cell = row[j];
-			if (cell != null)
-			    if ((cell.character != ' ') || (cell.lowerColour != null))
-				if ((cell.character != Pony.Cell.PIXELS) || (cell.lowerColour != null) || (cell.upperColour != null))
-				    cellpass = false;
-			Pony.Meta[] meta = metarow[j];
-			if ((meta != null) && (meta.length != 0))
-			{   for (int k = 0, l = meta.length; k < l; k++)
-				if ((meta[k] != null) && ((meta[k] instanceof Pony.Store) == false))
-				    if ((cellpass == false) || (meta[k] instanceof Pony.Balloon))
-					break outer;
-			}
-			else
-			    if (cellpass == false)
-				break outer;
-		}   }
+	    int cur = 0;
+	    while ((cur < height) && (first[cur] < 0))
+		cur++;
 	    top -= cur;
-	    //if (top < 0)
-	    // {
-	    //     int w = matrix[0].length;
-	    //     System.arraycopy(matrix, 0, matrix = new Pony.Cell[matrix.length - top][], -top, matrix.length + top);
-	    //     System.arraycopy(new Pony.Cell[-top][w], 0, matrix, 0, -top);
-	    //     System.arraycopy(metamatrix, 0, metamatrix = new Pony.Meta[metamatrix.length - top][][], -top, metamatrix.length + top);
-	    //     System.arraycopy(new Pony.Meta[-top][w + 1][], 0, metamatrix, 0, -top);
-	    //     top = 0;
-	    // }
 	}
 	else
 	    top = 0;
 	if (bottom >= 0)
 	{
-	    int cur = 0, m = Math.min(matrix[0].length + right, matrix[0].length);
-	    outer:
-	    for (int n = matrix.length - 1/* + top*/; cur <= n; cur++)
-		if (n - cur < matrix.length)
-		{   Pony.Cell[] row = matrix[n - cur];
-		    Pony.Meta[][] metarow = metamatrix[n - cur];
-		    for (int j = Math.max(-left, 0); j < m; j++)
-		    {
-			boolean cellpass = true;
-			Pony.Cell cell = row[j];
-			if (cell != null)
-			    if ((cell.character != ' ') || (cell.lowerColour != null))
-				if ((cell.character != Pony.Cell.PIXELS) || (cell.lowerColour != null) || (cell.upperColour != null))
-				    cellpass = false;
-			Pony.Meta[] meta = metarow[j];
-			if ((meta != null) && (meta.length != 0))
-			{   for (int k = 0, l = meta.length; k < l; k++)
-				if ((meta[k] != null) && ((meta[k] instanceof Pony.Store) == false))
-				    if ((cellpass == false) || (meta[k] instanceof Pony.Balloon))
-					break outer;
-			}
-			else
-			    if (cellpass == false)
-				break outer;
-		}   }
+	    int cur = 0;
+	    while ((cur < height) && (first[height - 1 - cur] < 0))
+		cur++;
 	    bottom -= cur;
-	    // if (bottom < 0)
-	    // {
-	    //     int h = matrix.length;
-	    //     System.arraycopy(matrix, 0, matrix = new Pony.Cell[matrix.length - bottom][], 0, matrix.length + bottom);
-	    //     System.arraycopy(new Pony.Cell[-bottom][matrix[0].length], 0, matrix, h, -bottom);
-	    //     System.arraycopy(metamatrix, 0, metamatrix = new Pony.Meta[metamatrix.length - bottom][][], 0, metamatrix.length + bottom);
-	    //     System.arraycopy(new Pony.Meta[-bottom][metamatrix[0].length][], 0, metamatrix, h, -bottom);
-	    //     bottom = 0;
-	    // }
 	}
 	else
 	    bottom = 0;
 	
-	
-	if (left > 0)
-	{   int w = matrix[0].length;
-	    for (int y = 0, h = matrix.length; y < h; y++)
-	    {
-		System.arraycopy(matrix[y], 0, matrix[y] = new Pony.Cell[w + left], left, w);
-		System.arraycopy(metamatrix[y], 0, metamatrix[y] = new Pony.Meta[w + 1 + left][], left, w + 1);
-	    }
-	    left = 0;
-	}
-	else
-	    left = -left;
-	
-	if (right > 0)
-	{   int w = matrix[0].length;
-	    for (int y = 0, h = matrix.length; y < h; y++)
-	    {
-		System.arraycopy(matrix[y], 0, matrix[y] = new Pony.Cell[w + right], 0, w);
-		System.arraycopy(metamatrix[y], 0, metamatrix[y] = new Pony.Meta[w + 1 + right][], 0, w + 1);
-	    }
-	    right = 0;
-	}
-	else
-	    right = -right;
-	
-	if (top > 0)
-	{
-	    int h = matrix.length, w = matrix[0].length;
-	    Pony.Cell[][] appendix = new Pony.Cell[top][w];
-	    System.arraycopy(matrix, 0, matrix = new Pony.Cell[h + top][], top, h);
-	    System.arraycopy(appendix, 0, matrix, 0, top);
-	    Pony.Meta[][][] metaappendix = new Pony.Meta[top][w + 1][];
-	    System.arraycopy(metamatrix, 0, metamatrix = new Pony.Meta[h + top][w + 1][], top, h);
-	    System.arraycopy(metaappendix, 0, metamatrix, 0, top);
-	    top = 0;
-	}
-	else
-	    top = -top;
-	
-	if (bottom > 0)
-	{
-	    int h = matrix.length, w = matrix[0].length;
-	    Pony.Cell[][] appendix = new Pony.Cell[bottom][w];
-	    System.arraycopy(matrix, 0, matrix = new Pony.Cell[h + bottom][], 0, h);
-	    System.arraycopy(appendix, 0, matrix, h, bottom);
-	    Pony.Meta[][][] metaappendix = new Pony.Meta[bottom][w + 1][];
-	    System.arraycopy(metamatrix, 0, metamatrix = new Pony.Meta[h + bottom][][], 0, h);
-	    System.arraycopy(metaappendix, 0, metamatrix, h, bottom);
-	    bottom = 0;
-	}
-	else
-	    bottom = -bottom;
-	
-	pony.matrix = matrix;
-	pony.metamatrix = metamatrix;
-	return new int[] { left, right, top, bottom };
+	view.pad(Math.max(left, 0), Math.max(right, 0), Math.max(top, 0), Math.max(bottom, 0));
+	Stats.end(Stats.MARGINS, stats);
+	return new int[] { Math.max(-left, 0), Math.max(-right, 0), Math.max(-top, 0), Math.max(-bottom, 0) };
     }
     
     
@@ -0,0 +1,523 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * A parsed conversion, one import and any number of exports
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class Conversion
+{
+    /**
+     * Constructor
+     */
+    public Conversion()
+    {
+	this.globals = new HashMap<String, String>();
+	this.outparams = new ArrayList<HashMap<String, String>>();
+	this.outtypes = new ArrayList<String>();
+    }
+    
+    
+    
+    /**
+     * Options given before the first {@code --import} or {@code --export}
+     */
+    public HashMap<String, String> globals;
+    
+    /**
+     * The stream that modules read if they have no file
+     */
+    public InputStream stdin = System.in;
+    
+    /**
+     * The stream that modules write if they have no file
+     */
+    public OutputStream stdout = System.out;
+    
+    /**
+     * The stream that warnings and errors are written to
+     */
+    public PrintStream stderr = System.err;
+    
+    /**
+     * The directory that relative input files listed in a manifest are relative to, {@code null} for the working directory
+     */
+    public String directory = null;
+    
+    /**
+     * The import module, {@code null} if none
+     */
+    public String intype;
+    
+    /**
+     * Flags passed to the import module, {@code null} if none
+     */
+    public HashMap<String, String> inparams;
+    
+    /**
+     * The export modules
+     */
+    public ArrayList<String> outtypes;
+    
+    /**
+     * Flags passed to the export modules
+     */
+    public ArrayList<HashMap<String, String>> outparams;
+    
+    
+    
+    /**
+     * Parse a command line
+     * 
+     * @param   args  The command line arguments
+     * @return        The conversion
+     */
+    public static Conversion parse(final String... args)
+    {
+	final Conversion conversion = new Conversion();
+	HashMap<String, String> params = conversion.globals;
+	String pname = null;
+	
+	for (final String arg : args)
+	    if (arg.equals("--in") || arg.equals("--import") || arg.equals("--out") || arg.equals("--export"))
+	    {	if (pname != null)
+		    params.put(pname, "yes");
+		pname = arg.intern();
+	    }
+	    else if ((pname == "--in") || (pname == "--import"))
+	    {	conversion.inparams = params = new HashMap<String, String>();
+		conversion.intype = arg.toLowerCase().intern();
+		pname = null;
+	    }
+	    else if ((pname == "--out") || (pname == "--export"))
+	    {   conversion.outparams.add(params = new HashMap<String, String>());
+		conversion.outtypes.add(arg.toLowerCase().intern());
+		pname = null;
+	    }
+	    else if (arg.startsWith("--") || (pname == null))
+	    {	if (pname != null)
+		    params.put(pname, "yes");
+		int eq = arg.indexOf("=");
+		if (eq < 0)
+		    pname = arg.replace("-", "");
+		else
+		{   pname = null;
+		    params.put(arg.substring(0, eq).replace("-", ""), arg.substring(eq + 1));
+	    }   }
+	    else
+	    {	params.put(pname, arg);
+		pname = null;
+	    }
+	
+	return conversion;
+    }
+    
+    
+    /**
+     * Perform the conversion
+     * 
+     * <p>
+     *   If the import and all exports support it the conversion is performed
+     *   one row at the time, see {@link #streamRows(PonyModule, PonyModule[])}.
+     *   With the global option {@code --parallel} the exports are performed
+     *   concurrently, see {@link #fanOut(Pony, PonyModule[])}.
+     * </p>
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void run() throws IOException
+    {
+	final PonyModule importer = this.createImporter();
+	final PonyModule[] exporters = new PonyModule[this.outtypes.size()];
+	for (int i = 0, n = exporters.length; i < n; i++)
+	    exporters[i] = this.createExporter(i);
+	
+	if ((importer != null) && this.streamRows(importer, exporters))
+	    return;
+	
+	Pony pony = null;
+	if (importer != null)
+	{   long[] stats = Stats.begin();
+	    pony = PonyCache.importPony(importer, this.intype, this.inparams);
+	    Stats.end(Stats.IMPORT, stats);
+	    Stats.count(pony);
+	}
+	
+	if ((exporters.length > 1) && this.globals.containsKey("parallel"))
+	{   this.fanOut(pony, exporters);
+	    return;
+	}
+	
+	/* Exports may modify the pony, so with more than one export each gets its own copy */
+	for (final PonyModule exporter : exporters)
+	    if (exporter != null)
+		export(exporter, ((exporters.length > 1) && (pony != null)) ? pony.clone() : pony);
+    }
+    
+    
+    /**
+     * Export a pony, recording the time of each step if {@code --stats} is used
+     * 
+     * @param   exporter  The export module
+     * @param   pony      The pony
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public static void export(PonyModule exporter, Pony pony) throws IOException
+    {
+	if (Stats.enabled == false)
+	{   exporter.exportPony(pony);
+	    return;
+	}
+	
+	long[] stats = Stats.begin();
+	pony = exporter.preparePony(pony);
+	Stats.end(Stats.PREPARE, stats);
+	
+	stats = Stats.begin();
+	byte[] data = exporter.encodePony(pony);
+	Stats.end(Stats.ENCODE, stats);
+	
+	stats = Stats.begin();
+	exporter.writePony(data);
+	Stats.end(Stats.WRITE, stats);
+    }
+    
+    
+    /**
+     * Perform the conversion one row at the time, so that the memory usage depends
+     * on the width of the pony rather than its size
+     * 
+     * <p>
+     *   This is possible when the import module supports {@link PonyModule#importRows(RowSink)}
+     *   and all export modules support {@link PonyModule#exportRows(int)}, which is not the
+     *   case if the margins are changed or balloons are inserted. If the exports need the
+     *   width of the pony, and the pony is read from a file, the file is read twice.
+     * </p>
+     * 
+     * @param   importer   The import module
+     * @param   exporters  The export modules, {@code null} elements are ignored
+     * @return             Whether the conversion was performed
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public boolean streamRows(PonyModule importer, PonyModule[] exporters) throws IOException
+    {
+	if ((importer.canImportRows() == false) || (exporters.length == 0))
+	    return false;
+	
+	int width = -1;
+	for (final PonyModule exporter : exporters)
+	    if ((exporter != null) && (exporter.canExportRows(width) == false))
+		if ((width < 0) && exporter.canExportRows(0))
+		{   if ((width = importer.scanWidth()) < 0)
+			return false;
+		}
+		else
+		    return false;
+	
+	final PonyModule.RowSink[] sinks = new PonyModule.RowSink[exporters.length];
+	int n = 0;
+	for (final PonyModule exporter : exporters)
+	    if (exporter != null)
+		sinks[n++] = exporter.exportRows(width);
+	
+	PonyModule.RowSink sink = n == 1 ? sinks[0] : new Tee(sinks, n);
+	if (Stats.enabled)
+	    sink = new Tee(new PonyModule.RowSink[] { new Counter(), sink }, 2);
+	
+	long[] stats = Stats.begin();
+	importer.importRows(sink);
+	Stats.end(Stats.STREAM, stats);
+	return true;
+    }
+    
+    
+    /**
+     * Perform all exports concurrently
+     * 
+     * <p>
+     *   The pony is treated as an immutable snapshot, each export works on its
+     *   own copy so that margin and balloon changes in one export does not affect
+     *   the others. The copies share rows until they are modified, the rows only
+     *   remember computed values in a way that is safe to share between threads. The output is written in the order of the exports once all
+     *   exports have been encoded. If any export fails nothing is written, the
+     *   first failure is thrown and the others are written to {@link #stderr}.
+     * </p>
+     * 
+     * @param   snapshot   The imported pony, will not be modified
+     * @param   exporters  The export modules, {@code null} elements are ignored
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void fanOut(final Pony snapshot, final PonyModule[] exporters) throws IOException
+    {
+	final int n = exporters.length;
+	final byte[][] outputs = new byte[n][];
+	final Throwable[] errors = new Throwable[n];
+	final Thread[] threads = new Thread[n];
+	
+	for (int i = 0; i < n; i++)
+	{   final int index = i;
+	    if (exporters[i] == null)
+		continue;
+	    (threads[i] = new Thread()
+		{
+		    @Override
+		    public void run()
+		    {
+			try
+			{   PonyModule exporter = exporters[index];
+			    long[] stats = Stats.begin();
+			    Pony pony = exporter.preparePony(snapshot.clone());
+			    Stats.end(Stats.PREPARE, stats);
+			    stats = Stats.begin();
+			    outputs[index] = exporter.encodePony(pony);
+			    Stats.end(Stats.ENCODE, stats);
+			}
+			catch (final Throwable err)
+			{   errors[index] = err;
+			}
+		    }
+		}).start();
+	}
+	
+	for (int i = 0; i < n; i++)
+	    if (threads[i] != null)
+		for (;;)
+		    try
+		    {   threads[i].join();
+			break;
+		    }
+		    catch (final InterruptedException err)
+		    {   // Wait again
+		    }
+	
+	Throwable error = null;
+	for (int i = 0; i < n; i++)
+	    if (errors[i] != null)
+	    {   /* The first failure is thrown, the others would be lost */
+		if (error == null)
+		    error = errors[i];
+		else
+		    this.stderr.println("\033[01;31mutil-say: error: export " + (i + 1) + ": " + errors[i] + "\033[00m");
+	    }
+	if (error instanceof IOException)
+	    throw (IOException)error;
+	else if (error instanceof RuntimeException)
+	    throw (RuntimeException)error;
+	else if (error instanceof Error)
+	    throw (Error)error;
+	else if (error != null)
+	    throw new IOException(error);
+	
+	for (int i = 0; i < n; i++)
+	    if (exporters[i] != null)
+	    {   long[] stats = Stats.begin();
+		exporters[i].writePony(outputs[i]);
+		Stats.end(Stats.WRITE, stats);
+	    }
+    }
+    
+    
+    /**
+     * Create a module, see {@link Modules}
+     * 
+     * @param   type    The module, {@code null} for none
+     * @param   params  Flags passed to the module
+     * @return          The module, {@code null} if it does not exist
+     */
+    public static PonyModule createModule(String type, HashMap<String, String> params)
+    {
+	return createModule(type, params, System.err);
+    }
+    
+    /**
+     * Create a module, see {@link Modules}
+     * 
+     * @param   type    The module, {@code null} for none
+     * @param   params  Flags passed to the module
+     * @param   stderr  The stream to write a warning to if the module does not exist
+     * @return          The module, {@code null} if it does not exist
+     */
+    public static PonyModule createModule(String type, HashMap<String, String> params, PrintStream stderr)
+    {
+	return type == null ? null : Modules.create(type, params, stderr);
+    }
+    
+    
+    /**
+     * Create the import module, using the conversion's standard streams
+     * 
+     * @return  The module, {@code null} if there is no import or the module does not exist
+     */
+    public PonyModule createImporter()
+    {
+	return this.useStandardStreams(createModule(this.intype, this.inparams, this.stderr));
+    }
+    
+    
+    /**
+     * Create an export module, using the conversion's standard streams
+     * 
+     * @param   index  The index of the export
+     * @return         The module, {@code null} if the module does not exist
+     */
+    public PonyModule createExporter(int index)
+    {
+	return this.useStandardStreams(createModule(this.outtypes.get(index), this.outparams.get(index), this.stderr));
+    }
+    
+    
+    /**
+     * Make a module use the conversion's standard streams
+     * 
+     * @param   module  The module, may be {@code null}
+     * @return          {@code module}
+     */
+    private PonyModule useStandardStreams(PonyModule module)
+    {
+	if (module != null)
+	    module.setStandardStreams(this.stdin, this.stdout, this.stderr);
+	return module;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Conversion clone()
+    {
+	Conversion rc = new Conversion();
+	rc.globals = new HashMap<String, String>(this.globals);
+	rc.stdin = this.stdin;
+	rc.stdout = this.stdout;
+	rc.stderr = this.stderr;
+	rc.directory = this.directory;
+	rc.intype = this.intype;
+	rc.inparams = this.inparams == null ? null : new HashMap<String, String>(this.inparams);
+	rc.outtypes = new ArrayList<String>(this.outtypes);
+	for (final HashMap<String, String> params : this.outparams)
+	    rc.outparams.add(new HashMap<String, String>(params));
+	return rc;
+    }
+    
+    
+    
+    /**
+     * Passes rows on to multiple receivers, each receiver gets its own copy of the rows
+     */
+    private static class Tee implements PonyModule.RowSink
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  sinks  The receivers
+	 * @param  n      The number of receivers
+	 */
+	public Tee(PonyModule.RowSink[] sinks, int n)
+	{
+	    this.sinks = sinks;
+	    this.n = n;
+	}
+	
+	
+	
+	/**
+	 * The receivers
+	 */
+	private final PonyModule.RowSink[] sinks;
+	
+	/**
+	 * The number of receivers
+	 */
+	private final int n;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void begin(String comment, String[][] tags) throws IOException
+	{
+	    for (int i = 0; i < this.n; i++)
+		this.sinks[i].begin(comment, tags);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void row(Pony.Row row, Pony.Meta[][] metarow) throws IOException
+	{
+	    for (int i = 0; i < this.n; i++)
+		this.sinks[i].row(row.clone(), Arrays.copyOf(metarow, metarow.length));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void end() throws IOException
+	{
+	    for (int i = 0; i < this.n; i++)
+		this.sinks[i].end();
+	}
+	
+    }
+    
+    
+    
+    /**
+     * Counts the cells and metadata entries in rows for {@code --stats}
+     */
+    private static class Counter implements PonyModule.RowSink
+    {
+	/**
+	 * {@inheritDoc}
+	 */
+	public void begin(String comment, String[][] tags)
+	{
+	    // Do nothing
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void row(Pony.Row row, Pony.Meta[][] metarow)
+	{
+	    Stats.count(row, metarow);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void end()
+	{
+	    // Do nothing
+	}
+	
+    }
+    
+}
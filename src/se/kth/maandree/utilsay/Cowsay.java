@@ -36,7 +36,7 @@ public class Cowsay extends Ponysay
      */
     public Cowsay(HashMap<String, String> flags)
     {
-	super(Cowsay.modifyFlags(flags));
+	super(Cowsay.modifyFlags(new HashMap<String, String>(flags)));
 	this.flags = flags;
     }
     
@@ -50,17 +50,16 @@ public class Cowsay extends Ponysay
     
     
     /**
-     * Import the pony from file
+     * Import the pony from a stream
      * 
-     * @return  The pony
+     * @param   in  The stream to read, it will not be closed
+     * @return      The pony
      * 
      * @throws  IOException  On I/O error
      */
-    public Pony importCow() throws IOException
+    @Override
+    public Pony importCow(InputStream in) throws IOException
     {
-	InputStream in = System.in;
-	if (this.file != null)
-	    in = new BufferedInputStream(new FileInputStream(this.file));
 	Scanner sc = new Scanner(in, "UTF-8");
 	
 	
@@ -99,10 +98,6 @@ public class Cowsay extends Ponysay
 	cow.append("print \"$the_cow\";\n");
 	
 	
-	if (in != System.in)
-	    in.close();
-	
-	
 	String pony = new String(execCow(cow.toString()), "UTF-8");
 	String line = pony.substring(0, pony.indexOf('\n'));
 	int pos = line.indexOf("$\\$") + 3;
@@ -114,36 +109,12 @@ public class Cowsay extends Ponysay
 	data.append(pony);
 	
 	
-	InputStream stdin = System.in;
-	try
-	{
-	    final byte[] streamdata = data.toString().getBytes("UTF-8");
-	    System.setIn(new InputStream()
-		{
-		    int ptr = 0;
-		    @Override
-		    public int read()
-		    {
-			if (this.ptr == streamdata.length)
-			    return -1;
-			return streamdata[this.ptr++] & 255;
-		    }
-		    @Override
-		    public int available()
-		    {
-			return streamdata.length - this.ptr;
-		    }
-		});
-	    this.flags.put("file", null);
-	    Ponysay ponysay = new Ponysay(this.flags);
-	    if (ponysay.version == this.version)
-		throw new Error("Default ponysay version should not be the cowsay version");
-	    return ponysay.importPony();
-	}
-	finally
-	{
-	    System.setIn(stdin);
-	}
+	HashMap<String, String> flags = new HashMap<String, String>(this.flags);
+	flags.remove("file");
+	Ponysay ponysay = new Ponysay(flags);
+	if (ponysay.version == this.version)
+	    throw new Error("Default ponysay version should not be the cowsay version");
+	return ponysay.importPony(new ByteArrayInputStream(data.toString().getBytes("UTF-8")));
     }
     
     
@@ -0,0 +1,276 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+
+/**
+ * Conversion server, lets clients use an already running, and warmed up, JVM
+ * 
+ * <p>
+ *   The server listens on the loopback interface and writes the port and a
+ *   key to an information file that only the user can read. The file is
+ *   removed when the server exits, and the server refuses to start if it
+ *   already exists. A request is the key and a newline, the number of
+ *   arguments and a newline, the working directory and the arguments each
+ *   terminated by a NUL, the length of the input in decimal and a newline,
+ *   and the input. The response is the exit value, the length of stderr and
+ *   the length of stdout seperated by blank spaces and terminated by a
+ *   newline, followed by stderr and stdout.
+ * </p>
+ * <p>
+ *   Each client is served in its own thread, so a slow client does not hold
+ *   up the others, and conversions are run concurrently, except that a
+ *   conversion with {@code --stats} is run alone, because it records to
+ *   global counters. The key is read, with a limited length, and compared
+ *   in constant time before anything else is read.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class Daemon
+{
+    /**
+     * Non-constructor
+     */
+    private Daemon()
+    {
+	assert false : "This class [Daemon] is not meant to be instansiated.";
+    }
+    
+    
+    
+    /**
+     * The number of milliseconds a client may be silent before its request is abandoned
+     */
+    private static final int TIMEOUT = 30000;
+    
+    /**
+     * The longest string, in bytes, a client may send
+     */
+    private static final int MAX_STRING = 1 << 16;
+    
+    /**
+     * The read lock is held while a conversion is running, and the
+     * write lock while a conversion with statistics is running
+     */
+    private static final ReadWriteLock conversionLock = new ReentrantReadWriteLock();
+    
+    
+    
+    /**
+     * Get the default information file
+     * 
+     * @return  The default information file
+     */
+    public static String getInfoFile()
+    {
+	String file = System.getenv("UTIL_SAY_DAEMON");
+	if ((file != null) && (file.isEmpty() == false))
+	    return file;
+	String dir = System.getenv("XDG_RUNTIME_DIR");
+	if ((dir == null) || dir.isEmpty())
+	    dir = System.getProperty("user.home");
+	return dir + "/.util-say-daemon";
+    }
+    
+    
+    /**
+     * Start the server, this method does not return
+     * 
+     * @param   port      The port to listen on, 0 for any free port
+     * @param   infofile  The file to write the port and key to
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public static void run(int port, String infofile) throws IOException
+    {
+	ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+	
+	byte[] rawkey = new byte[16];
+	(new SecureRandom()).nextBytes(rawkey);
+	StringBuilder keybuf = new StringBuilder();
+	for (final byte b : rawkey)
+	{   keybuf.append("0123456789abcdef".charAt((b >>> 4) & 15));
+	    keybuf.append("0123456789abcdef".charAt(b & 15));
+	}
+	final String key = keybuf.toString();
+	
+	/* The file is created empty and made private to the user before the key is written to it */
+	File info = new File(infofile);
+	if (info.createNewFile() == false)
+	    throw new IOException("Daemon information file already exists, is another daemon running? " + infofile);
+	info.deleteOnExit();
+	if ((info.setReadable(false, false) && info.setWritable(false, false) &&
+	     info.setReadable(true, true) && info.setWritable(true, true)) == false)
+	    throw new IOException("Unable to restrict the permissions of the daemon information file: " + infofile);
+	OutputStream out = new FileOutputStream(info);
+	try
+	{   out.write((server.getLocalPort() + " " + key + "\n").getBytes("UTF-8"));
+	}
+	finally
+	{   out.close();
+	}
+	
+	for (;;)
+	{   final Socket client = server.accept();
+	    client.setSoTimeout(TIMEOUT);
+	    (new Thread()
+		{
+		    @Override
+		    public void run()
+		    {
+			try
+			{   serve(client, key);
+			}
+			catch (final Throwable err)
+			{   System.err.println("\033[01;31mutil-say: warning: daemon request failed: " + err + "\033[00m");
+			}
+			finally
+			{   try
+			    {   client.close();
+			    }
+			    catch (final Throwable ignore)
+			    {   // Ignore
+			}   }
+		    }
+		}).start();
+	}
+    }
+    
+    
+    /**
+     * Serve a client
+     * 
+     * @param   client  The client's socket
+     * @param   key     The key the client must send
+     * 
+     * @throws  IOException  On I/O error
+     */
+    private static void serve(Socket client, String key) throws IOException
+    {
+	InputStream in = new BufferedInputStream(client.getInputStream());
+	if (MessageDigest.isEqual(key.getBytes("UTF-8"), readString(in, '\n', key.length()).getBytes("UTF-8")) == false)
+	    return;
+	int argc = Integer.parseInt(readString(in, '\n', 10).trim());
+	String cwd = readString(in, '\0', MAX_STRING);
+	String[] args = new String[argc];
+	for (int i = 0; i < argc; i++)
+	    args[i] = readString(in, '\0', MAX_STRING);
+	int length = Integer.parseInt(readString(in, '\n', 10).trim());
+	byte[] input = new byte[length];
+	for (int ptr = 0, n; ptr < length; ptr += n)
+	    if ((n = in.read(input, ptr, length - ptr)) < 0)
+		throw new EOFException();
+	
+	Conversion conversion = Conversion.parse(args);
+	conversion.directory = cwd;
+	resolve(conversion.globals, "batch", cwd);
+	resolve(conversion.globals, "index", cwd);
+	resolve(conversion.globals, "indexfile", cwd);
+	String stats = conversion.globals.get("stats");
+	if ((stats != null) && (Stats.destination(stats) != null))
+	    resolve(conversion.globals, "stats", cwd);
+	if (conversion.inparams != null)
+	    resolve(conversion.inparams, "file", cwd);
+	for (final HashMap<String, String> params : conversion.outparams)
+	    resolve(params, "file", cwd);
+	
+	ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+	ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+	int status = 0;
+	conversion.stdin = new ByteArrayInputStream(input);
+	conversion.stdout = stdout;
+	conversion.stderr = new PrintStream(stderr, true, "UTF-8");
+	
+	Lock lock = stats != null ? conversionLock.writeLock() : conversionLock.readLock();
+	lock.lock();
+	try
+	{   if (stats != null)
+		Stats.start();
+	    if (conversion.globals.containsKey("batch"))
+		status = Batch.run(conversion, conversion.globals.get("batch")) == 0 ? 0 : 1;
+	    else if (conversion.globals.containsKey("index"))
+		status = Index.run(conversion, conversion.globals.get("index"), conversion.globals.get("indexfile")) == 0 ? 0 : 1;
+	    else
+		conversion.run();
+	    if (stats != null)
+		Stats.report(Stats.destination(conversion.globals.get("stats")), conversion.stderr);
+	}
+	catch (final Throwable err)
+	{   status = 1;
+	    conversion.stderr.println("\033[01;31mutil-say: error: " + err + "\033[00m");
+	}
+	finally
+	{   lock.unlock();
+	}
+	conversion.stderr.flush();
+	
+	OutputStream out = new BufferedOutputStream(client.getOutputStream());
+	out.write((status + " " + stderr.size() + " " + stdout.size() + "\n").getBytes("UTF-8"));
+	stderr.writeTo(out);
+	stdout.writeTo(out);
+	out.flush();
+    }
+    
+    
+    /**
+     * Make a file option relative to the client's working directory
+     * 
+     * @param  params  The options
+     * @param  name    The name of the option
+     * @param  cwd     The client's working directory
+     */
+    private static void resolve(HashMap<String, String> params, String name, String cwd)
+    {
+	String file = params.get(name);
+	if ((file != null) && (file.equals("-") == false) && (file.startsWith("/") == false))
+	    params.put(name, cwd + "/" + file);
+    }
+    
+    
+    /**
+     * Read a UTF-8 string
+     * 
+     * @param   in          The stream to read from
+     * @param   terminator  The byte that terminates the string
+     * @param   limit       The maximum length of the string, in bytes
+     * @return              The string, without the terminator
+     * 
+     * @throws  IOException  On I/O error, or if the string is longer than {@code limit}
+     */
+    private static String readString(InputStream in, char terminator, int limit) throws IOException
+    {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	for (int d; (d = in.read()) != terminator;)
+	    if (d == -1)
+		throw new EOFException();
+	    else if (buf.size() == limit)
+		throw new IOException("Request string too long");
+	    else
+		buf.write(d);
+	return buf.toString("UTF-8");
+    }
+    
+}
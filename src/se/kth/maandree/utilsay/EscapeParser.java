@@ -0,0 +1,384 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+
+
+/**
+ * Table driven parser for the escape sequences in ponysay ponies,
+ * the platform specific semantics are provided by a {@link PonysaySubmodule}
+ * 
+ * <p>
+ *   The parser is fed the characters after the escape character, one at a time,
+ *   until a sequence is completed. One parser is created for each import, so
+ *   submodules do not have any parsing state of their own. Numerical parameters
+ *   are parsed in place, so a sequence is parsed without allocating anything.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class EscapeParser
+{
+    /**
+     * Constructor
+     * 
+     * @param  submodule  The submodule that provides the platform specific semantics
+     * @param  colours    The current palette, updated in-place
+     * @param  format     The current format, updated in-place
+     * @param  stderr     The stream to write warnings about bad escape sequences to
+     */
+    public EscapeParser(PonysaySubmodule submodule, int[] colours, boolean[] format, PrintStream stderr)
+    {
+	this.submodule = submodule;
+	this.stderr = stderr;
+	this.colours = colours;
+	this.format = format;
+	this.foregroundSGR = submodule.getDefaultForegroundSGR();
+	this.backgroundSGR = submodule.getDefaultBackgroundSGR();
+    }
+    
+    
+    
+    /**
+     * Character class: decimal digit
+     */
+    private static final byte DIGIT = 1;
+    
+    /**
+     * Character class: hexadecimal digit above nine
+     */
+    private static final byte HEX = 2;
+    
+    /**
+     * Character class: final character of a CSI sequence
+     */
+    private static final byte FINAL = 4;
+    
+    /**
+     * Character classes of the ASCII characters
+     */
+    private static final byte[] CLASSES = new byte[128];
+    
+    /**
+     * State: the escape character has been read
+     */
+    private static final int ESCAPE = 0;
+    
+    /**
+     * State: in a CSI sequence
+     */
+    private static final int CSI = 1;
+    
+    /**
+     * State: an OSI sequence has been started
+     */
+    private static final int OSI = 2;
+    
+    /**
+     * State: in an OSI P sequence, which sets a palette colour
+     */
+    private static final int OSI_P = 3;
+    
+    /**
+     * State: in an OSI 4 sequence, which sets a palette colour
+     */
+    private static final int OSI_4 = 4;
+    
+    /**
+     * Parameters larger than this are not accumulated further
+     */
+    private static final int LIMIT = 1 << 24;
+    
+    /**
+     * The prefix of the colour in an OSI 4 sequence
+     */
+    private static final char[] RGB = {'r', 'g', 'b', ':'};
+    
+    
+    static
+    {
+	for (int c = '0'; c <= '9'; c++)  CLASSES[c] = DIGIT;
+	for (int c = 'a'; c <= 'z'; c++)  CLASSES[c] = FINAL;
+	for (int c = 'A'; c <= 'Z'; c++)  CLASSES[c] = FINAL;
+	for (int c = 'a'; c <= 'f'; c++)  CLASSES[c] |= HEX;
+	for (int c = 'A'; c <= 'F'; c++)  CLASSES[c] |= HEX;
+	CLASSES['~'] = FINAL;
+    }
+    
+    
+    
+    /**
+     * The current background colour, in ARGB, {@link Colour#NONE} for default
+     */
+    public int background = Colour.NONE;
+    
+    /**
+     * The current foreground colour, in ARGB, {@link Colour#NONE} for default
+     */
+    public int foreground = Colour.NONE;
+    
+    /**
+     * While a SGR sequence is applied: the palette index of the new foreground colour,
+     * -1 for default, -2 if the foreground colour is not changed
+     */
+    public int foregroundIndex = -2;
+    
+    /**
+     * The submodule that provides the platform specific semantics
+     */
+    private final PonysaySubmodule submodule;
+    
+    /**
+     * The stream to write warnings to
+     */
+    private final PrintStream stderr;
+    
+    /**
+     * The current palette
+     */
+    private final int[] colours;
+    
+    /**
+     * The current format
+     */
+    private final boolean[] format;
+    
+    /**
+     * The SGR parameter that resets the foreground colour
+     */
+    private final int foregroundSGR;
+    
+    /**
+     * The SGR parameter that resets the background colour
+     */
+    private final int backgroundSGR;
+    
+    /**
+     * The parsing state
+     */
+    private int state = ESCAPE;
+    
+    /**
+     * The numerical parameters of the current sequence
+     */
+    private int[] params = new int[16];
+    
+    /**
+     * The number of completed parameters in {@link #params}
+     */
+    private int count = 0;
+    
+    /**
+     * The parameter that is being parsed, or in an OSI 4 sequence, the field that is being parsed
+     */
+    private int value = 0;
+    
+    /**
+     * The number of characters that have been read in the current parameter
+     */
+    private int digits = 0;
+    
+    /**
+     * Whether the current sequence is malformed and should be ignored
+     */
+    private boolean invalid = false;
+    
+    
+    
+    /**
+     * Parse a character in an escape sequence
+     * 
+     * @param   c  The current character, the first character is the one after the escape character
+     * @return     Whether the escape sequence continues
+     */
+    public boolean parse(int c)
+    {
+	int cls = (c < 128) ? CLASSES[c] : 0;
+	if (this.state == CSI)
+	{
+	    if ((cls & DIGIT) != 0)
+	    {   if (this.value < LIMIT)
+		    this.value = this.value * 10 + (c & 15);
+	    }
+	    else if (c == ';')
+		this.push();
+	    else if ((cls & FINAL) != 0)
+	    {   this.push();
+		this.state = ESCAPE;
+		if ((c == 'm') && (this.invalid == false))
+		    this.applySGR();
+		return false;
+	    }
+	    else
+		this.invalid = true;
+	}
+	else if (this.state == OSI_P)
+	{
+	    this.params[this.count++] = (c <= '9') ? (c & 15) : ((c & 15) + 9);
+	    if (this.count == 7)
+	    {   int[] p = this.params;
+		this.colours[p[0]] = Colour.rgb((p[1] << 4) | p[2], (p[3] << 4) | p[4], (p[5] << 4) | p[6]);
+		this.state = ESCAPE;
+		return false;
+	    }
+	}
+	else if (this.state == OSI_4)
+	{
+	    if (c == '\\')
+	    {   if ((this.value == 6) && (this.invalid == false) && (this.params[0] < this.colours.length))
+		    this.colours[this.params[0]] = Colour.rgb(this.params[1], this.params[2], this.params[3]);
+		this.state = ESCAPE;
+		return false;
+	    }
+	    this.parseOSI4(c, cls);
+	}
+	else if (this.state == OSI)
+	    if (c == 'P')
+	    {   this.state = OSI_P;
+		this.count = 0;
+	    }
+	    else if (c == '4')
+	    {   this.state = OSI_4;
+		this.value = this.digits = 0;
+		this.params[0] = this.params[1] = this.params[2] = this.params[3] = 0;
+		this.invalid = false;
+	    }
+	    else
+	    {   this.state = ESCAPE;
+		this.stderr.println("\033[01;31mutil-say: warning: bad escape sequence: OSI 0x" + Integer.toString(c, 16) + "\033[00m");
+		return false;
+	    }
+	else if (c == '[')
+	{   this.state = CSI;
+	    this.count = this.value = 0;
+	    this.invalid = false;
+	}
+	else if (c == ']')
+	    this.state = OSI;
+	else
+	{   this.stderr.println("\033[01;31mutil-say: warning: bad escape sequence: ESC 0x" + Integer.toString(c, 16) + "\033[00m");
+	    return false;
+	}
+	return true;
+    }
+    
+    
+    /**
+     * Complete the current parameter of a CSI sequence, an empty parameter is zero
+     */
+    private void push()
+    {
+	if (this.count == this.params.length)
+	    System.arraycopy(this.params, 0, this.params = new int[this.count << 1], 0, this.count);
+	this.params[this.count++] = this.value;
+	this.value = 0;
+    }
+    
+    
+    /**
+     * Parse a character in an OSI 4 sequence, {@code ;index;rgb:red/green/blue ESC},
+     * {@link #value} is the field that is being parsed: the leading semicolon is 0,
+     * the index is 1, {@code rgb:} is 2, the colour components are 3 to 5 and the
+     * escape character is 6, the numbers are stored in {@link #params}
+     * 
+     * @param  c    The current character, not the terminating backslash
+     * @param  cls  The character's class
+     */
+    private void parseOSI4(int c, int cls)
+    {
+	int field = this.value;
+	if (this.invalid)
+	    return;
+	if (field == 0)
+	    this.invalid = c != ';';
+	else if (field == 2)
+	{   if (c != RGB[this.digits])
+		this.invalid = true;
+	    else if (++this.digits < RGB.length)
+		return;
+	}
+	else if (field == 6)
+	    this.invalid = true;
+	else if ((cls & (field == 1 ? DIGIT : (DIGIT | HEX))) != 0)
+	{   int i = field == 1 ? 0 : (field - 2);
+	    if (this.params[i] < LIMIT)
+		this.params[i] = this.params[i] * (field == 1 ? 10 : 16) + ((c <= '9') ? (c & 15) : ((c & 15) + 9));
+	    this.digits++;
+	    return;
+	}
+	else if ((this.digits == 0) || (c != ((field == 1) ? ';' : (field == 5) ? '\033' : '/')))
+	    this.invalid = true;
+	this.value = field + 1;
+	this.digits = 0;
+    }
+    
+    
+    /**
+     * Apply the completed SGR sequence in {@link #params}
+     */
+    private void applySGR()
+    {
+	int[] colours = this.colours;
+	boolean[] format = this.format;
+	int xterm256 = 0;
+	boolean back = false;
+	this.foregroundIndex = -2;
+	for (int i = 0, n = this.count; i < n; i++)
+	{   int value = this.params[i];
+	    if (xterm256 == 2)
+	    {   xterm256 = 0;
+		if (back)  this.background = colours[value];
+		else       this.foregroundIndex = value;
+	    }
+	    else if (value == 0)
+	    {   for (int j = 0; j < 9; j++)
+		    format[j] = false;
+		this.background = this.submodule.getDefaultBackground(colours);
+		this.foregroundIndex = this.submodule.getDefaultForeground(colours);
+	    }
+	    else if (xterm256 == 1)
+		xterm256 = value == 5 ? 2 : 0;
+	    else if (value < 10)
+		format[value - 1] = true;
+	    else if ((20 < value) && (value < 30))
+		format[value - 21] = false;
+	    else if (value == this.foregroundSGR)  this.foregroundIndex = this.submodule.getDefaultForeground(colours);
+	    else if (value == this.backgroundSGR)  this.background = this.submodule.getDefaultBackground(colours);
+	    else if (value == 38)   xterm256 = 1;
+	    else if (value == 48)   xterm256 = 1;
+	    else if (value < 38)    this.foregroundIndex = value - 30;
+	    else if (value < 48)    this.background = colours[value - 40];
+	    else
+		this.submodule.parseSGR(this, value, colours);
+	    if (xterm256 == 1)
+		back = value == 48;
+	}
+	int forei = this.foregroundIndex;
+	if (forei == -1)
+	    this.foreground = Colour.NONE;
+	else if (forei >= 0)
+	    if ((forei < 8) && format[0])
+		this.foreground = colours[forei | 8];
+	    else
+		this.foreground = colours[forei];
+    }
+    
+}
+
@@ -19,7 +19,6 @@
 package se.kth.maandree.utilsay;
 
 import java.io.*;
-import java.awt.Color;
 import java.awt.image.*;
 import java.util.*;
 import javax.imageio.*;
@@ -30,7 +29,7 @@ import javax.imageio.*;
  * 
  * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
  */
-public class Image
+public class Image extends PonyModule
 {
     /**
      * Constructor
@@ -52,11 +51,6 @@ public class Image
     
     
     
-    /**
-     * Input/output option: pony file
-     */
-    protected String file;
-    
     /**
      * Input/output option: left margin, negative for unmodified
      */
@@ -98,25 +92,26 @@ public class Image
      */
     protected String format;
     
+    /**
+     * The viewport created by {@link #preparePony(Pony)}, used by {@link #encodePony(Pony)}
+     */
+    private Viewport viewport = null;
+    
     
     
     /**
-     * Import the pony from file
-     * 
-     * @return  The pony
-     * 
-     * @throws  IOException  On I/O error
+     * {@inheritDoc}
      */
-    public Pony importPony() throws IOException
+    public Pony importPony(InputStream in) throws IOException
     {
-	BufferedImage image = ImageIO.read(new BufferedInputStream(this.file == null ? System.in : new FileInputStream(this.file)));
+	BufferedImage image = ImageIO.read(new BufferedInputStream(in));
 	int width  = image.getWidth()  / this.magnified;
 	int height = image.getHeight() / this.magnified;
 	int div = this.magnified * this.magnified;
 	
-	Pony.Cell cell;
 	Pony pony = new Pony((height >> 1) + (height & 1), width, null, null);
 	for (int y = 0; y < height; y += 2)
+	{   Pony.Row row = pony.rows[y >> 1];
 	    for (int x = 0; x < width; x++)
 	    {
 		int a = 0, r = 0, g = 0, b = 0;
@@ -129,7 +124,11 @@ public class Image
 			b +=  argb        & 255;
 		    }
 		a /= div; r /= div; g /= div; b /= div;
-		pony.matrix[y >> 1][x] = cell = new Pony.Cell(Pony.Cell.PIXELS, a == 0 ? null : new Color(r, g, b, a), null, null);
+		row.set(x, Pony.Cell.PIXELS, Colour.NONE, Colour.NONE, null);
+		if (a != 0)
+		{   row.upper[x] = (a << 24) | (r << 16) | (g << 8) | b;
+		    row.flags[x] |= Pony.Row.UPPER;
+		}
 		
 		if ((y + 2) * this.magnified <= image.getHeight())
 		{
@@ -143,25 +142,30 @@ public class Image
 			    b +=  argb        & 255;
 			}
 		    a /= div; r /= div; g /= div; b /= div;
-		    cell.lowerColour = a == 0 ? null : new Color(r, g, b, a);
+		    if (a != 0)
+		    {   row.lower[x] = (a << 24) | (r << 16) | (g << 8) | b;
+			row.flags[x] |= Pony.Row.LOWER;
+		    }
 		}
 		
-		if (encoded && (cell.upperColour.getAlpha() == cell.lowerColour.getAlpha()))
-		{   r = cell.upperColour.getRed();
-		    g = cell.upperColour.getGreen();
-		    b = cell.upperColour.getBlue();
-		    int r2 = cell.upperColour.getRed();
-		    int g2 = cell.upperColour.getGreen();
-		    int b2 = cell.upperColour.getBlue();
-		    switch (cell.upperColour.getAlpha())
+		int upperColour = encoded ? row.getUpper(x) : Colour.NONE;
+		int lowerColour = encoded ? row.getLower(x) : Colour.NONE;
+		if (encoded && (Colour.alpha(upperColour) == Colour.alpha(lowerColour)))
+		{   r = Colour.red(upperColour);
+		    g = Colour.green(upperColour);
+		    b = Colour.blue(upperColour);
+		    int r2 = Colour.red(upperColour);
+		    int g2 = Colour.green(upperColour);
+		    int b2 = Colour.blue(upperColour);
+		    switch (Colour.alpha(upperColour))
 		    {
 			case 100:
 			    if ((r == 255) && (g == 0) && (b == 0))
-				pony.matrix[y][x] = new Pony.Cell(Pony.Cell.NNW_SSE, null, null, null);
+				pony.rows[y].set(x, Pony.Cell.NNW_SSE, Colour.NONE, Colour.NONE, null);
 			    else if ((r == 0) && (g == 0) && (b == 255))
-				pony.matrix[y][x] = new Pony.Cell(Pony.Cell.NNE_SSW, null, null, null);
+				pony.rows[y].set(x, Pony.Cell.NNE_SSW, Colour.NONE, Colour.NONE, null);
 			    else if ((r == 255) && (g == 0) && (b == 255))
-				pony.matrix[y][x] = new Pony.Cell(Pony.Cell.CROSS, null, null, null);
+				pony.rows[y].set(x, Pony.Cell.CROSS, Colour.NONE, Colour.NONE, null);
 			    else if ((r == 0) && (g == 255) && (b == 0))
 			    {
 				int bw = x, _x = x;
@@ -179,10 +183,10 @@ public class Image
 					break;
 				}
 				bw = x-- - bw;
-				pony.matrix[y][_x] = null;
-				pony.metamatrix[y][_x] = new Pony.Meta[] { new Pony.Balloon(
+				pony.rows[y].clear(_x);
+				pony.metadata.put(y, _x, new Pony.Meta[] { new Pony.Balloon(
 						         null, null, new Integer(bw), null,
-							 null, null, Pony.Balloon.NONE) };
+							 null, null, Pony.Balloon.NONE) });
 			    }
 			    break;
 			    
@@ -201,54 +205,64 @@ public class Image
 				              | (jr ? Pony.Balloon.RIGHT  : Pony.Balloon.NONE)
 				              | (jt ? Pony.Balloon.TOP    : Pony.Balloon.NONE)
 				              | (jb ? Pony.Balloon.BOTTOM : Pony.Balloon.NONE);
-			    pony.matrix[y][x] = null;
-			    pony.metamatrix[y][x] = new Pony.Meta[] { new Pony.Balloon(
+			    pony.rows[y].clear(x);
+			    pony.metadata.put(y, x, new Pony.Meta[] { new Pony.Balloon(
 					            left == 0 ? null : new Integer(left), top  == 0 ? null : new Integer(top),
 						    minw == 0 ? null : new Integer(minw), minh == 0 ? null : new Integer(minh),
 						    maxw == 0 ? null : new Integer(maxw), maxh == 0 ? null : new Integer(maxh),
-						    justification) };
+						    justification) });
 			    break;
 		}   }
 	    }
+	    pony.rows[y >> 1] = row.compress();
+	}
 	
-	Common.changeMargins(pony, this.left, this.right, this.balloon ? -1 : this.top, this.bottom);
+	Viewport view = new Viewport(pony);
+	Common.changeMargins(view, this.left, this.right, this.balloon ? -1 : this.top, this.bottom);
 	
 	if (this.balloon)
-	    Common.insertBalloon(pony, this.top);
+	    Common.insertBalloon(view, this.top);
 	
-	pony.height = pony.matrix.length;
-	pony.width = pony.height == 0 ? 0 : pony.matrix[0].length;
+	return view.toPony();
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Pony preparePony(Pony pony)
+    {
+	this.viewport = new Viewport(pony);
+	Common.changeMargins(this.viewport, this.left, this.right, this.top, this.bottom);
 	return pony;
     }
     
     
     /**
-     * Export a pony to the file
-     * 
-     * @param  pony  The pony
-     * 
-     * @throws  IOException  On image export error
+     * {@inheritDoc}
      */
-    public void exportPony(Pony pony) throws IOException
+    public byte[] encodePony(Pony pony) throws IOException
     {
-	Common.changeMargins(pony, this.left, this.right, this.top, this.bottom);
-	int h = Math.max(1, pony.matrix.length);
-	int w = h == 0 ? 1 : Math.max(1, pony.matrix[0].length);
+	Viewport view = ((this.viewport != null) && (this.viewport.pony == pony)) ? this.viewport : new Viewport(pony);
+	this.viewport = null;
+	int h = Math.max(1, view.height);
+	int w = Math.max(1, view.width);
 	
 	BufferedImage img = new BufferedImage(w * this.magnified, (h << 1) * this.magnified, BufferedImage.TYPE_INT_ARGB);
-	Color TRANSPARENT = new Color(0, 0, 0, 0);
+	final int TRANSPARENT = 0;
+	Pony.Meta[][] metarow = new Pony.Meta[w + 1][];
 	
 	for (int y = 0; y < h; y++)
-	{   Pony.Cell[] row = pony.matrix[y];
-	    Pony.Meta[][] metarow = pony.metamatrix[y];
+	{   view.getMetaRow(y, metarow);
 	    x_loop: for (int x = 0; x <= w; x++)
 	    {   Pony.Meta[] metacell = metarow[x];
 		if (metacell != null)
 		    for (Pony.Meta meta : metacell)
 			if (meta.getClass() == Pony.Recall.class)
-			    System.err.println("\033[01;31mutil-say: warning: ignoring recall in image, no way to parse in an image module\033[00m");
+			    this.stderr.println("\033[01;31mutil-say: warning: ignoring recall in image, no way to parse in an image module\033[00m");
 			else if (meta.getClass() == Pony.Combining.class)
-			    System.err.println("\033[01;31mutil-say: warning: cannot include text in images\033[00m");
+			    this.stderr.println("\033[01;31mutil-say: warning: cannot include text in images\033[00m");
 			else if (this.encoded && (meta.getClass() == Pony.Balloon.class))
 			{
 			    Pony.Balloon balloon = (Pony.Balloon)meta;
@@ -263,12 +277,10 @@ public class Image
 			    r2 |= balloon.top == null ? 0 : (balloon.top.intValue() & 127);
 			    g2 |= balloon.minHeight == null ? 0 : (balloon.minHeight.intValue() & 127);
 			    b2 |= balloon.maxHeight == null ? 0 : (balloon.maxHeight.intValue() & 255);
-			    Color upper = new Color(r, g, b, 99);
-			    Color lower = new Color(r2, g2, b2, 99);
 			    int _x = x * this.magnified;
 			    int uy = (y << 1) * this.magnified;
 			    int ly = ((y << 1) | 1) * this.magnified;
-			    int u = upper.getRGB(), l = lower.getRGB();
+			    int u = Colour.rgba(r, g, b, 99), l = Colour.rgba(r2, g2, b2, 99);
 			    for (int my = 0; my < this.magnified; my++)
 				for (int mx = 0; mx < this.magnified; mx++)
 				{   img.setRGB(_x + mx, uy + my, u);
@@ -282,31 +294,33 @@ public class Image
 		
 		if (x != w)
 		{
-		    Pony.Cell cell = row[x];
-		    Color upper, lower;
-		    if (cell == null)
-			upper = lower = TRANSPARENT;
+		    int u, l;
+		    int flags = view.getFlags(y, x);
+		    if ((flags & Pony.Row.CELL) == 0)
+			u = l = TRANSPARENT;
 		    else
-		    {   boolean whitespace = (cell.character == ' ') || (cell.character == ' ');
-			upper = whitespace ? cell.lowerColour : cell.upperColour;
-			lower = cell.lowerColour;
-			whitespace |= cell.character == Pony.Cell.PIXELS;
-			if (cell.character == Pony.Cell.NNW_SSE)
-			    upper = lower = this.encoded ? new Color(255, 0, 0, 100) : TRANSPARENT;
-			else if (cell.character == Pony.Cell.NNE_SSW)
-			    upper = lower = this.encoded ? new Color(0, 0, 255, 100) : TRANSPARENT;
-			else if (cell.character == Pony.Cell.CROSS)
-			    upper = lower = this.encoded ? new Color(255, 0, 255, 100) : TRANSPARENT;
+		    {   int character = view.getCharacter(y, x);
+			boolean whitespace = (character == ' ') || (character == ' ');
+			boolean upper = (flags & (whitespace ? Pony.Row.LOWER : Pony.Row.UPPER)) != 0;
+			boolean lower = (flags & Pony.Row.LOWER) != 0;
+			u = whitespace ? view.getLower(y, x) : view.getUpper(y, x);
+			l = view.getLower(y, x);
+			whitespace |= character == Pony.Cell.PIXELS;
+			if (character == Pony.Cell.NNW_SSE)
+			    u = l = this.encoded ? 0x64FF0000 : TRANSPARENT;
+			else if (character == Pony.Cell.NNE_SSW)
+			    u = l = this.encoded ? 0x640000FF : TRANSPARENT;
+			else if (character == Pony.Cell.CROSS)
+			    u = l = this.encoded ? 0x64FF00FF : TRANSPARENT;
 			else
 			{   if (!whitespace)
-				System.err.println("\033[01;31mutil-say: warning: cannot include text in images\033[00m");
-			    if ((upper == null) || !whitespace)  upper = TRANSPARENT;
-			    if ((lower == null) || !whitespace)  lower = TRANSPARENT;
+				this.stderr.println("\033[01;31mutil-say: warning: cannot include text in images\033[00m");
+			    if (!upper || !whitespace)  u = TRANSPARENT;
+			    if (!lower || !whitespace)  l = TRANSPARENT;
 		    }	}
 		    int _x = x * this.magnified;
 		    int uy = (y << 1) * this.magnified;
 		    int ly = ((y << 1) | 1) * this.magnified;
-		    int u = upper.getRGB(), l = lower.getRGB();
 		    for (int my = 0; my < this.magnified; my++)
 			for (int mx = 0; mx < this.magnified; mx++)
 			{   img.setRGB(_x + mx, uy + my, u);
@@ -315,9 +329,9 @@ public class Image
 	}   }   }
 	
 	if ((pony.comment != null) && (pony.comment.length() != 0))
-	    System.err.println("\033[01;31mutil-say: warning: not capable of exporting metadata to images\033[00m");
+	    this.stderr.println("\033[01;31mutil-say: warning: not capable of exporting metadata to images\033[00m");
 	else if ((pony.tags != null) && (pony.tags.length != 0))
-	    System.err.println("\033[01;31mutil-say: warning: not capable of exporting metadata to images\033[00m");
+	    this.stderr.println("\033[01;31mutil-say: warning: not capable of exporting metadata to images\033[00m");
 	
 	String fmt = this.format;
 	if (fmt == null)
@@ -327,7 +341,11 @@ public class Image
 	    {   fmt = this.file.contains("/") ? this.file.substring(this.file.lastIndexOf("/") + 1) : this.file;
 		fmt = this.file.contains(".") ? this.file.substring(this.file.lastIndexOf(".") + 1) : "png";
 	    }
-	ImageIO.write(img, fmt, new BufferedOutputStream(this.file == null ? System.out : new FileOutputStream(this.file)));
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	long[] stats = Stats.begin();
+	ImageIO.write(img, fmt, out);
+	Stats.end(Stats.IMAGEIO, stats);
+	return out.toByteArray();
     }
     
 }
@@ -0,0 +1,240 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Persistent index of a directory of ponies, so that ponies can be selected
+ * by their tags or dimensions without importing them
+ * 
+ * <p>
+ *   The index is a text file with one line per pony, and fields seperated by tabs:
+ *   the name of the file in the directory, its size, its modification time, the
+ *   width and the height of the pony, the row and column of its first balloon,
+ *   {@code -} and {@code -} if it has none, the {@link Pony#fingerprint()} in
+ *   hexadecimal, and the tags, each as {@code name=value}. Backslashes, tabs
+ *   and newlines in the fields are escaped with a backslash. The first line
+ *   identifies the format and the import module and its parameters.
+ * </p>
+ * <p>
+ *   When the index is updated, a file is only imported again if its size or
+ *   modification time has changed, or if the import module or its parameters
+ *   have changed.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class Index
+{
+    /**
+     * Non-constructor
+     */
+    private Index()
+    {
+	assert false : "This class [Index] is not meant to be instansiated.";
+    }
+    
+    
+    
+    /**
+     * The first field of the first line in an index
+     */
+    private static final String FORMAT = "util-say-index 1";
+    
+    
+    
+    /**
+     * Get the default index file of a directory
+     * 
+     * @param   directory  The directory
+     * @return             The index file
+     */
+    public static String getIndexFile(String directory)
+    {
+	return (directory.endsWith("/") ? directory : (directory + "/")) + ".util-say-index";
+    }
+    
+    
+    /**
+     * Create or update the index of a directory
+     * 
+     * @param   conversion  The conversion, its import module, {@code ponysay} if none, is used to import
+     *                      the ponies, the import's {@code --file} is replaced with each file
+     * @param   directory   The directory, all non-hidden files in it are indexed
+     * @param   indexfile   The index file, {@code null} for the default, see {@link #getIndexFile(String)}
+     * @return              The number of files that could not be imported, they are left out of the index
+     * 
+     * @throws  IOException  If the directory cannot be listed or the index cannot be written
+     */
+    public static int run(Conversion conversion, String directory, String indexfile) throws IOException
+    {
+	if ((new File(directory)).isDirectory() == false)
+	    throw new IOException("Not a directory: " + directory);
+	if (indexfile == null)
+	    indexfile = getIndexFile(directory);
+	
+	String type = conversion.intype == null ? "ponysay" : conversion.intype;
+	HashMap<String, String> params = conversion.inparams == null ? new HashMap<String, String>() : new HashMap<String, String>(conversion.inparams);
+	StringBuilder header = new StringBuilder(FORMAT);
+	header.append('\t').append(escape(type));
+	for (final String param : new TreeSet<String>(params.keySet()))
+	    if (param.equals("file") == false)
+		header.append('\t').append(escape(param + "=" + params.get(param)));
+	
+	HashMap<String, String> entries = read(indexfile, header.toString());
+	File self = (new File(indexfile)).getAbsoluteFile();
+	File temp = (new File(indexfile + ".tmp")).getAbsoluteFile();
+	
+	StringBuilder index = new StringBuilder(header);
+	index.append('\n');
+	int failed = 0;
+	for (final String input : Batch.listInputs(directory, conversion.stdin, conversion.directory))
+	{
+	    File file = new File(input);
+	    if (file.getAbsoluteFile().equals(self) || file.getAbsoluteFile().equals(temp))
+		continue;
+	    String name = escape(file.getName());
+	    String prefix = name + "\t" + file.length() + "\t" + file.lastModified() + "\t";
+	    String entry = entries.get(name);
+	    if ((entry == null) || (entry.startsWith(prefix) == false))
+		try
+		{   params.put("file", input);
+		    PonyModule importer = Conversion.createModule(type, params, conversion.stderr);
+		    if (importer == null)
+			throw new IOException("Module does not exist: " + type);
+		    entry = prefix + describe(importer.importPony());
+		}
+		catch (final Throwable err)
+		{   failed++;
+		    conversion.stderr.println("\033[01;31mutil-say: error: " + input + ": " + err + "\033[00m");
+		    continue;
+		}
+	    index.append(entry);
+	    index.append('\n');
+	}
+	
+	write(indexfile, index.toString());
+	return failed;
+    }
+    
+    
+    /**
+     * Describe a pony for the index
+     * 
+     * @param   pony  The pony
+     * @return        The index fields after the modification time
+     */
+    private static String describe(Pony pony)
+    {
+	StringBuilder rc = new StringBuilder();
+	rc.append(pony.width).append('\t').append(pony.height);
+	
+	String balloon = "\t-\t-";
+	Pony.MetaIndex metadata = pony.metadata;
+	outer:
+	    for (int i = 0, n = metadata.size(); i < n; i++)
+		for (final Pony.Meta meta : metadata.valueAt(i))
+		    if (meta instanceof Pony.Balloon)
+		    {   balloon = "\t" + metadata.rowAt(i) + "\t" + metadata.columnAt(i);
+			break outer;
+		    }
+	rc.append(balloon);
+	
+	rc.append('\t').append(Long.toHexString(pony.fingerprint()));
+	if (pony.tags != null)
+	    for (final String[] tag : pony.tags)
+		rc.append('\t').append(escape(tag[0] + "=" + tag[1]));
+	return rc.toString();
+    }
+    
+    
+    /**
+     * Read an existing index
+     * 
+     * @param   indexfile  The index file
+     * @param   header     The first line the index must have to be used
+     * @return             The entries in the index, by the escaped file name, empty if
+     *                     the index does not exist or was created with another import
+     * 
+     * @throws  IOException  On I/O error
+     */
+    private static HashMap<String, String> read(String indexfile, String header) throws IOException
+    {
+	HashMap<String, String> rc = new HashMap<String, String>();
+	if ((new File(indexfile)).isFile() == false)
+	    return rc;
+	BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexfile), "UTF-8"));
+	try
+	{   if (header.equals(in.readLine()) == false)
+		return rc;
+	    for (String line; (line = in.readLine()) != null;)
+		if (line.indexOf('\t') > 0)
+		    rc.put(line.substring(0, line.indexOf('\t')), line);
+	}
+	finally
+	{   in.close();
+	}
+	return rc;
+    }
+    
+    
+    /**
+     * Replace an index, the new index is written to a temporary file that is renamed,
+     * so a reader sees either the old or the new index
+     * 
+     * @param   indexfile  The index file
+     * @param   index      The new index
+     * 
+     * @throws  IOException  On I/O error
+     */
+    private static void write(String indexfile, String index) throws IOException
+    {
+	File file = new File(indexfile);
+	File temp = new File(indexfile + ".tmp");
+	OutputStream out = new FileOutputStream(temp);
+	try
+	{   out.write(index.getBytes("UTF-8"));
+	}
+	finally
+	{   out.close();
+	}
+	if (temp.renameTo(file) == false)
+	{   file.delete();
+	    if (temp.renameTo(file) == false)
+		throw new IOException("Cannot write index: " + indexfile);
+	}
+    }
+    
+    
+    /**
+     * Escape backslashes, tabs and newlines in a field
+     * 
+     * @param   field  The field
+     * @return         The escaped field
+     */
+    private static String escape(String field)
+    {
+	return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+    
+}
+
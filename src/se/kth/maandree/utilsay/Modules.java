@@ -0,0 +1,170 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+
+/**
+ * Registry of import and export modules
+ * 
+ * <p>
+ *   Modules are registered by class name and the class is not loaded until the
+ *   module is selected, so a conversion only pays for the modules it uses.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class Modules
+{
+    /**
+     * Non-constructor
+     */
+    private Modules()
+    {
+	assert false : "This class [Modules] is not meant to be instansiated.";
+    }
+    
+    
+    
+    /**
+     * Module name to module class name map
+     */
+    private static final HashMap<String, String> classNames = new HashMap<String, String>();
+    
+    /**
+     * Module name to module constructor map, for the modules that have been loaded
+     */
+    private static final HashMap<String, Constructor<? extends PonyModule>> constructors = new HashMap<String, Constructor<? extends PonyModule>>();
+    
+    
+    static
+    {
+	register("ponysay", "se.kth.maandree.utilsay.Ponysay");
+	register("unisay",  "se.kth.maandree.utilsay.Unisay");
+	register("cowsay",  "se.kth.maandree.utilsay.Cowsay");
+	register("cat",     "se.kth.maandree.utilsay.Cat");
+	register("image",   "se.kth.maandree.utilsay.Image");
+	register("test",    "se.kth.maandree.utilsay.Test");
+    }
+    
+    
+    
+    /**
+     * Register a module
+     * 
+     * @param  name       The name of the module, as given to {@code --import} and {@code --export}
+     * @param  className  The fully qualified name of the module's class, it must extend {@link PonyModule}
+     *                    and have a public constructor that takes a {@code HashMap<String, String>} of flags
+     */
+    public static synchronized void register(String name, String className)
+    {
+	classNames.put(name, className);
+	constructors.remove(name);
+    }
+    
+    
+    /**
+     * Get the names of all registered modules
+     * 
+     * @return  The names of all registered modules, sorted
+     */
+    public static synchronized String[] list()
+    {
+	String[] rc = new String[classNames.size()];
+	classNames.keySet().toArray(rc);
+	Arrays.sort(rc);
+	return rc;
+    }
+    
+    
+    /**
+     * Create a module, loading its class if it has not already been loaded
+     * 
+     * @param   name    The name of the module
+     * @param   params  Flags passed to the module
+     * @return          The module, {@code null} if there is no such module
+     */
+    public static PonyModule create(String name, HashMap<String, String> params)
+    {
+	return create(name, params, System.err);
+    }
+    
+    /**
+     * Create a module, loading its class if it has not already been loaded
+     * 
+     * @param   name    The name of the module
+     * @param   params  Flags passed to the module
+     * @param   stderr  The stream to write a warning to if there is no such module
+     * @return          The module, {@code null} if there is no such module
+     */
+    public static PonyModule create(String name, HashMap<String, String> params, PrintStream stderr)
+    {
+	Constructor<? extends PonyModule> constructor = getConstructor(name);
+	if (constructor == null)
+	{   stderr.println("\033[01;31mutil-say: warning: unrecognised module: " + name + "\033[00m");
+	    return null;
+	}
+	
+	try
+	{   return constructor.newInstance(params);
+	}
+	catch (final InvocationTargetException err)
+	{   Throwable cause = err.getCause();
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException)cause;
+	    if (cause instanceof Error)
+		throw (Error)cause;
+	    throw new RuntimeException(cause);
+	}
+	catch (final Exception err)
+	{   throw new Error("util-say: cannot create module " + name, err);
+	}
+    }
+    
+    
+    /**
+     * Get the constructor of a module
+     * 
+     * @param   name  The name of the module
+     * @return        The constructor, {@code null} if there is no such module
+     */
+    private static synchronized Constructor<? extends PonyModule> getConstructor(String name)
+    {
+	Constructor<? extends PonyModule> rc = constructors.get(name);
+	if (rc != null)
+	    return rc;
+	
+	String className = classNames.get(name);
+	if (className == null)
+	    return null;
+	
+	try
+	{   rc = Class.forName(className).asSubclass(PonyModule.class).getConstructor(HashMap.class);
+	}
+	catch (final Exception err)
+	{   throw new Error("util-say: cannot load module " + name, err);
+	}
+	constructors.put(name, rc);
+	return rc;
+    }
+    
+}
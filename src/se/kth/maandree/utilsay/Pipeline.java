@@ -0,0 +1,425 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Staged conversion pipeline for batches
+ * 
+ * <p>
+ *   Each input file goes through four stages: read, decode ({@link PonyModule#importPony(InputStream)}),
+ *   transform ({@link PonyModule#preparePony(Pony)}) and encode ({@link PonyModule#encodePony(Pony)}
+ *   and {@link PonyModule#writePony(byte[])}). Each stage has its own pool of threads and the stages
+ *   are joined by bounded queues, so a slow stage stops the earlier stages rather than letting
+ *   files pile up in memory. If an export is written to stdout, the encode stage has only
+ *   one thread, so that the outputs are not interleaved.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class Pipeline
+{
+    /**
+     * Constructor
+     * 
+     * @param  readers       The number of threads reading files
+     * @param  decoders      The number of threads importing ponies
+     * @param  transformers  The number of threads adjusting margins and balloons
+     * @param  encoders      The number of threads creating and writing the output
+     * @param  capacity      The number of files that can wait between two stages
+     */
+    public Pipeline(int readers, int decoders, int transformers, int encoders, int capacity)
+    {
+	this.readers = Math.max(1, readers);
+	this.decoders = Math.max(1, decoders);
+	this.transformers = Math.max(1, transformers);
+	this.encoders = Math.max(1, encoders);
+	this.capacity = Math.max(1, capacity);
+    }
+    
+    
+    
+    /**
+     * End of queue marker
+     */
+    private static final Job END = new Job(null, null);
+    
+    
+    
+    /**
+     * The number of threads reading files
+     */
+    protected int readers;
+    
+    /**
+     * The number of threads importing ponies
+     */
+    protected int decoders;
+    
+    /**
+     * The number of threads adjusting margins and balloons
+     */
+    protected int transformers;
+    
+    /**
+     * The number of threads creating and writing the output
+     */
+    protected int encoders;
+    
+    /**
+     * The number of files that can wait between two stages
+     */
+    protected int capacity;
+    
+    
+    
+    /**
+     * Run a conversion for every input file
+     * 
+     * @param   conversion  The conversion template, see {@link Batch#prepare(Conversion, String)}
+     * @param   inputs      The input files
+     * @return              The number of input files that failed
+     */
+    public int run(final Conversion conversion, final String[] inputs)
+    {
+	final AtomicInteger next = new AtomicInteger(0);
+	final AtomicInteger failures = new AtomicInteger(0);
+	final BlockingQueue<Job> read = new ArrayBlockingQueue<Job>(this.capacity);
+	final BlockingQueue<Job> decoded = new ArrayBlockingQueue<Job>(this.capacity);
+	final BlockingQueue<Job> transformed = new ArrayBlockingQueue<Job>(this.capacity);
+	
+	/* Outputs written to stdout must not be interleaved */
+	int encoders = this.encoders;
+	for (final HashMap<String, String> params : conversion.outparams)
+	    if ((params.get("file") == null) || params.get("file").equals("-"))
+		encoders = 1;
+	
+	ArrayList<Thread> threads = new ArrayList<Thread>();
+	
+	Stage reader = new Stage(null, read, this.readers, this.decoders, failures, conversion.stderr, Stats.READ)
+	    {
+		@Override
+		protected Job take()
+		{
+		    int i = next.getAndIncrement();
+		    return i < inputs.length ? new Job(inputs[i], Batch.prepare(conversion, inputs[i])) : END;
+		}
+		
+		@Override
+		protected void process(Job job) throws IOException
+		{
+		    if ((job.conversion.inparams != null) && (job.conversion.inparams.get("file") != null))
+			job.data = readFile(job.conversion.inparams.get("file"));
+		}
+	    };
+	
+	Stage decoder = new Stage(read, decoded, this.decoders, this.transformers, failures, conversion.stderr, Stats.IMPORT)
+	    {
+		@Override
+		protected void process(Job job) throws IOException
+		{
+		    PonyModule importer = job.conversion.createImporter();
+		    if (importer == null)
+			throw new IOException(job.conversion.intype == null ? "No import module" : ("Module does not exist: " + job.conversion.intype));
+		    job.pony = importer.importPony(new ByteArrayInputStream(job.data == null ? new byte[0] : job.data));
+		    job.data = null;
+		    Stats.count(job.pony);
+		}
+	    };
+	
+	Stage transformer = new Stage(decoded, transformed, this.transformers, encoders, failures, conversion.stderr, Stats.PREPARE)
+	    {
+		@Override
+		protected void process(Job job)
+		{
+		    /* Every export is prepared before any is encoded, and preparing may modify the pony,
+		     * so with more than one export each gets its own copy */
+		    int n = job.conversion.outtypes.size();
+		    boolean isolate = n > 1;
+		    job.exporters = new PonyModule[n];
+		    job.prepared = new Pony[n];
+		    for (int i = 0; i < n; i++)
+		    {   job.exporters[i] = job.conversion.createExporter(i);
+			if (job.exporters[i] != null)
+			    job.prepared[i] = job.exporters[i].preparePony(isolate ? job.pony.clone() : job.pony);
+		    }
+		    job.pony = null;
+		}
+	    };
+	
+	Stage encoder = new Stage(transformed, null, encoders, 0, failures, conversion.stderr, -1)
+	    {
+		@Override
+		protected void process(Job job) throws IOException
+		{
+		    for (int i = 0, n = job.exporters.length; i < n; i++)
+			if (job.exporters[i] != null)
+			{   long[] stats = Stats.begin();
+			    byte[] data = job.exporters[i].encodePony(job.prepared[i]);
+			    Stats.end(Stats.ENCODE, stats);
+			    job.prepared[i] = null;
+			    stats = Stats.begin();
+			    job.exporters[i].writePony(data);
+			    Stats.end(Stats.WRITE, stats);
+			}
+		}
+	    };
+	
+	for (final Stage stage : new Stage[] { reader, decoder, transformer, encoder })
+	    for (int i = 0; i < stage.workers; i++)
+	    {   Thread thread = new Thread(stage);
+		thread.start();
+		threads.add(thread);
+	    }
+	
+	for (final Thread thread : threads)
+	    for (;;)
+		try
+		{   thread.join();
+		    break;
+		}
+		catch (final InterruptedException err)
+		{   // Wait again
+		}
+	
+	return failures.get();
+    }
+    
+    
+    /**
+     * Read a file completely
+     * 
+     * @param   file  The file
+     * @return        The content of the file
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public static byte[] readFile(String file) throws IOException
+    {
+	InputStream in = new FileInputStream(file);
+	try
+	{   byte[] buf = new byte[(int)Math.max(Math.min((new File(file)).length(), Integer.MAX_VALUE - 8), 0) + 1];
+	    int ptr = 0;
+	    for (int n; (n = in.read(buf, ptr, buf.length - ptr)) != -1;)
+		if ((ptr += n) == buf.length)
+		    System.arraycopy(buf, 0, buf = new byte[ptr << 1], 0, ptr);
+	    System.arraycopy(buf, 0, buf = new byte[ptr], 0, ptr);
+	    return buf;
+	}
+	finally
+	{   in.close();
+	}
+    }
+    
+    
+    
+    /**
+     * A file going through the pipeline
+     */
+    private static class Job
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  input       The input file
+	 * @param  conversion  The conversion for the input file
+	 */
+	public Job(String input, Conversion conversion)
+	{
+	    this.input = input;
+	    this.conversion = conversion;
+	}
+	
+	
+	
+	/**
+	 * The input file
+	 */
+	public final String input;
+	
+	/**
+	 * The conversion for the input file
+	 */
+	public final Conversion conversion;
+	
+	/**
+	 * The content of the input file, set by the read stage
+	 */
+	public byte[] data;
+	
+	/**
+	 * The pony, set by the decode stage
+	 */
+	public Pony pony;
+	
+	/**
+	 * The export modules, set by the transform stage
+	 */
+	public PonyModule[] exporters;
+	
+	/**
+	 * The ponies to encode for each export module, set by the transform stage
+	 */
+	public Pony[] prepared;
+	
+    }
+    
+    
+    
+    /**
+     * A pipeline stage, one instance is shared by all threads in the stage
+     */
+    private static abstract class Stage implements Runnable
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  in          The queue to take files from, {@code null} to override {@link #take()}
+	 * @param  out         The queue to put processed files in, {@code null} for the last stage
+	 * @param  workers     The number of threads in the stage
+	 * @param  successors  The number of threads in the next stage
+	 * @param  failures    Counter for failed files
+	 * @param  stderr      The stream to write errors to
+	 * @param  phase       The phase to record the time of for {@code --stats}, -1 if the stage records it itself
+	 */
+	public Stage(BlockingQueue<Job> in, BlockingQueue<Job> out, int workers, int successors, AtomicInteger failures, PrintStream stderr, int phase)
+	{
+	    this.in = in;
+	    this.out = out;
+	    this.workers = workers;
+	    this.successors = successors;
+	    this.alive = new AtomicInteger(workers);
+	    this.failures = failures;
+	    this.stderr = stderr;
+	    this.phase = phase;
+	}
+	
+	
+	
+	/**
+	 * The queue to take files from
+	 */
+	protected final BlockingQueue<Job> in;
+	
+	/**
+	 * The queue to put processed files in
+	 */
+	protected final BlockingQueue<Job> out;
+	
+	/**
+	 * The number of threads in the stage
+	 */
+	public final int workers;
+	
+	/**
+	 * The number of threads in the next stage
+	 */
+	protected final int successors;
+	
+	/**
+	 * The number of threads in the stage that have not finished
+	 */
+	protected final AtomicInteger alive;
+	
+	/**
+	 * Counter for failed files
+	 */
+	protected final AtomicInteger failures;
+	
+	/**
+	 * The stream to write errors to
+	 */
+	protected final PrintStream stderr;
+	
+	/**
+	 * The phase to record the time of, -1 if the stage records it itself
+	 */
+	protected final int phase;
+	
+	
+	
+	/**
+	 * Get the next file
+	 * 
+	 * @return  The next file, {@link Pipeline#END} if there are no more files
+	 * 
+	 * @throws  InterruptedException  If interrupted while waiting
+	 */
+	protected Job take() throws InterruptedException
+	{
+	    return this.in.take();
+	}
+	
+	/**
+	 * Process a file
+	 * 
+	 * @param   job  The file
+	 * 
+	 * @throws  IOException  On I/O error
+	 */
+	protected abstract void process(Job job) throws IOException;
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void run()
+	{
+	    try
+	    {   for (Job job; (job = this.take()) != END;)
+		    try
+		    {   long[] stats = this.phase < 0 ? null : Stats.begin();
+			this.process(job);
+			Stats.end(this.phase, stats);
+			if (this.out != null)
+			    this.out.put(job);
+		    }
+		    catch (final InterruptedException err)
+		    {   throw err;
+		    }
+		    catch (final Throwable err)
+		    {   this.failures.incrementAndGet();
+			this.stderr.println("\033[01;31mutil-say: error: " + job.input + ": " + err + "\033[00m");
+		    }
+	    }
+	    catch (final InterruptedException err)
+	    {   this.stderr.println("\033[01;31mutil-say: error: pipeline interrupted\033[00m");
+	    }
+	    finally
+	    {   if ((this.alive.decrementAndGet() == 0) && (this.out != null))
+		    for (int i = 0; i < this.successors; i++)
+			for (;;)
+			    try
+			    {   this.out.put(END);
+				break;
+			    }
+			    catch (final InterruptedException err)
+			    {   // Try again
+			    }
+	    }
+	}
+	
+    }
+    
+}
@@ -18,7 +18,7 @@
  */
 package se.kth.maandree.utilsay;
 
-import java.awt.Color;
+import java.util.Arrays;
 
 
 /**
@@ -43,8 +43,10 @@ public class Pony
 	this.comment = comment;
 	this.tags = tags;
 	
-	this.matrix = new Pony.Cell[height][width];
-	this.metamatrix = new Pony.Meta[height][width + 1][];
+	this.rows = new Pony.Row[height];
+	for (int y = 0; y < height; y++)
+	    this.rows[y] = new Pony.Row(width);
+	this.metadata = new Pony.MetaIndex();
     }
     
     
@@ -72,17 +74,27 @@ public class Pony
     /**
      * The cells in the pony
      */
-    public Pony.Cell[][] matrix;
+    public Pony.Row[] rows;
     
     /**
-     * The metacells in the pony
+     * The metacells in the pony, a metacell at column <i>x</i> comes before
+     * the cell at column <i>x</i>, column {@link #width} is after the last cell
      */
-    public Pony.Meta[][][] metamatrix;
+    public Pony.MetaIndex metadata;
     
     
     
     /**
-     * {@inheritDoc}
+     * Create a copy of the pony
+     * 
+     * <p>
+     *   The copy shares its rows and metadata with this pony until either pony
+     *   modifies them, so cloning only costs a reference per row. A pony that
+     *   modifies a row or its metadata must get it from {@link #writableRow(int)}
+     *   or {@link #writableMetadata()}, which copy what is shared first.
+     * </p>
+     * 
+     * @return  The copy
      */
     @Override
     public Pony clone()
@@ -93,24 +105,1058 @@ public class Pony
 	    {	_tags[i][0] = this.tags[i][0];
 		_tags[i][1] = this.tags[i][1];
 	    }
-	Pony rc = new Pony(this.height, this.width, this.comment, _tags);
+	Pony rc = new Pony(0, 0, this.comment, _tags);
+	rc.height = this.height;
+	rc.width = this.width;
+	rc.rows = new Row[this.height];
 	for (int y = 0; y < this.height; y++)
+	    (rc.rows[y] = this.rows[y]).shared = true;
+	(rc.metadata = this.metadata).shared = true;
+	return rc;
+    }
+    
+    
+    /**
+     * Get a row in order to modify it, if the row is shared with
+     * another pony, it is copied and the copy replaces it in this pony
+     * 
+     * @param   y  The row
+     * @return     The row, {@code rows[y]}, it is not shared
+     */
+    public Row writableRow(int y)
+    {
+	Row row = this.rows[y];
+	if (row.shared)
+	    this.rows[y] = row = row.clone();
+	return row;
+    }
+    
+    
+    /**
+     * Get the metadata in order to modify it, if the metadata is shared
+     * with another pony, it is copied and the copy replaces it in this pony
+     * 
+     * @return  The metadata, {@link #metadata}, it is not shared
+     */
+    public MetaIndex writableMetadata()
+    {
+	if (this.metadata.shared)
+	    this.metadata = this.metadata.clone();
+	return this.metadata;
+    }
+    
+    
+    /**
+     * Get a cell
+     * 
+     * @param   y  The row
+     * @param   x  The column
+     * @return     The cell, a new object that is not a part of the pony, {@code null} if there is no cell
+     */
+    public Cell getCell(int y, int x)
+    {
+	return this.rows[y].get(x);
+    }
+    
+    
+    /**
+     * Replace a cell
+     * 
+     * @param  y     The row
+     * @param  x     The column
+     * @param  cell  The cell, it is copied, {@code null} to remove the cell
+     */
+    public void setCell(int y, int x, Cell cell)
+    {
+	this.writableRow(y).set(x, cell);
+    }
+    
+    
+    /**
+     * Get a fingerprint of the pony's content: its size, cells, metadata, tags and comment
+     * 
+     * <p>
+     *   Ponies with the same content have the same fingerprint, also between runs
+     *   and regardless of how the rows are stored, so it can be used as a key for
+     *   caches and to find duplicates. The rows remember their fingerprints until
+     *   they are modified, see {@link Row#fingerprint()}, so only modified rows,
+     *   and the metadata, which is sparse, are hashed again.
+     * </p>
+     * 
+     * @return  The fingerprint
+     */
+    public long fingerprint()
+    {
+	long hash = mix(mix(0, this.height), this.width);
+	hash = mix(hash, this.comment);
+	if (this.tags == null)
+	    hash = mix(hash, -1);
+	else
+	{   hash = mix(hash, this.tags.length);
+	    for (final String[] tag : this.tags)
+		hash = mix(mix(hash, tag[0]), tag[1]);
+	}
+	
+	if (this.rows != null)
+	    for (final Row row : this.rows)
+		hash = mix(hash, row == null ? -1 : row.fingerprint());
+	
+	if (this.metadata == null)
+	    hash = mix(hash, -1);
+	else
+	    for (int i = 0, n = this.metadata.size(); i < n; i++)
+	    {   hash = mix(mix(hash, this.metadata.rowAt(i)), this.metadata.columnAt(i));
+		Meta[] metacell = this.metadata.valueAt(i);
+		hash = mix(hash, metacell.length);
+		for (final Meta meta : metacell)
+		    if (meta == null)
+			hash = mix(hash, 0);
+		    else if (meta instanceof Combining)
+		    {   Combining m = (Combining)meta;
+			hash = mix(mix(mix(mix(hash, 1), m.character), m.foregroundColour), m.backgroundColour);
+			hash = mix(hash, m.format);
+		    }
+		    else if (meta instanceof Recall)
+		    {   Recall m = (Recall)meta;
+			hash = mix(mix(mix(mix(hash, 2), m.name), m.foregroundColour), m.backgroundColour);
+			hash = mix(hash, m.format);
+		    }
+		    else if (meta instanceof Store)
+			hash = mix(mix(mix(hash, 3), ((Store)meta).name), ((Store)meta).value);
+		    else if (meta instanceof Balloon)
+		    {   Balloon m = (Balloon)meta;
+			hash = mix(mix(mix(mix(hash, 4), m.left), m.top), m.minWidth);
+			hash = mix(mix(mix(mix(hash, m.minHeight), m.maxWidth), m.maxHeight), m.justification);
+		    }
+		    else
+			hash = mix(mix(hash, 5), meta.getClass().getName());
+	    }
+	
+	return hash;
+    }
+    
+    
+    /**
+     * Add a value to a fingerprint
+     * 
+     * @param   hash   The fingerprint so far
+     * @param   value  The value
+     * @return         The new fingerprint
+     */
+    private static long mix(long hash, long value)
+    {
+	hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+	return hash ^ (hash >>> 29);
+    }
+    
+    /**
+     * Add a string, that may be {@code null}, to a fingerprint
+     * 
+     * @param   hash   The fingerprint so far
+     * @param   value  The value
+     * @return         The new fingerprint
+     */
+    private static long mix(long hash, String value)
+    {
+	if (value == null)
+	    return mix(hash, -1);
+	hash = mix(hash, value.length());
+	for (int i = 0, n = value.length(); i < n; i++)
+	    hash = mix(hash, value.charAt(i));
+	return hash;
+    }
+    
+    /**
+     * Add an integer, that may be {@code null}, to a fingerprint
+     * 
+     * @param   hash   The fingerprint so far
+     * @param   value  The value
+     * @return         The new fingerprint
+     */
+    private static long mix(long hash, Integer value)
+    {
+	return mix(hash, value == null ? -1L << 32 : value.intValue() & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * Add a format, that may be {@code null}, to a fingerprint
+     * 
+     * @param   hash   The fingerprint so far
+     * @param   value  The value
+     * @return         The new fingerprint
+     */
+    private static long mix(long hash, boolean[] value)
+    {
+	if (value == null)
+	    return mix(hash, -1);
+	long bits = value.length;
+	for (int i = 0, n = value.length; i < n; i++)
+	    if (value[i])
+		bits |= 1L << (32 + (i & 31));
+	return mix(hash, bits);
+    }
+    
+    
+    
+    /**
+     * A row of cells, stored as one array per attribute rather than as {@link Cell}
+     * objects, so that a pony only needs a few objects per row
+     * 
+     * <p>
+     *   Colours are stored as ARGB values, {@link #flags} tells whether the colours are
+     *   {@code null}, whether there is a cell at all, and the formatting of the cell.
+     *   {@link #get(int)} and {@link #set(int, Cell)} convert from and to {@link Cell}.
+     * </p>
+     * <p>
+     *   A row can be run-length encoded, see {@link #compress()}, then the arrays hold
+     *   one element per run of identical cells rather than one per column. The element
+     *   for column <i>x</i> is at index {@link #runOf(int) runOf(x)}, which is <i>x</i>
+     *   in a row that is not run-length encoded. Modifying a cell, other than with
+     *   {@link #setRun(int, int, int, int, boolean[])}, decodes the row.
+     * </p>
+     */
+    public static class Row
+    {
+	/**
+	 * Flags bits for the format, bit <i>i</i> is element <i>i</i> of {@link Cell#format}
+	 */
+	public static final short FORMAT = 0x01FF;
+	
+	/**
+	 * Flag for a position that has a cell, otherwise the cell is {@code null}
+	 */
+	public static final short CELL = 0x0200;
+	
+	/**
+	 * Flag for a cell whose upper colour is not {@link Colour#NONE}
+	 */
+	public static final short UPPER = 0x0400;
+	
+	/**
+	 * Flag for a cell whose lower colour is not {@link Colour#NONE}
+	 */
+	public static final short LOWER = 0x0800;
+	
+	
+	
+	/**
+	 * Constructor, the row will have no cells
+	 * 
+	 * @param  width  The width of the row
+	 */
+	public Row(int width)
 	{
-	    Cell[] trow = this.matrix[y];
-	    Cell[] rrow = rc.matrix[y];
-	    Meta[][] tmetarow = this.metamatrix[y];
-	    Meta[][] rmetarow = rc.metamatrix[y];
-	    for (int x = 0; x <= this.width; x++)
-	    {   if (x != this.width)
-		    rrow[x] = trow[x] == null ? null : trow[x].clone();
-		if (tmetarow[x] != null)
-		{   Meta[] tmetacell = tmetarow[x];
-		    Meta[] rmetacell = rmetarow[x] = new Meta[tmetacell.length];
-		    for (int z = 0, m = tmetacell.length; z < m; z++)
-			rmetacell[z] = tmetacell[z] == null ? null : tmetacell[z].clone();
-	    }   }
+	    this.width = width;
+	    this.characters = new int[width];
+	    this.upper = new int[width];
+	    this.lower = new int[width];
+	    this.flags = new short[width];
 	}
-	return rc;
+	
+	/**
+	 * Constructor for a run-length encoded row, the row will have no cells
+	 * 
+	 * @param  width  The width of the row
+	 * @param  runs   The number of runs
+	 */
+	private Row(int width, int runs)
+	{
+	    this.width = width;
+	    this.characters = new int[runs];
+	    this.upper = new int[runs];
+	    this.lower = new int[runs];
+	    this.flags = new short[runs];
+	    this.ends = new int[runs];
+	}
+	
+	
+	
+	/**
+	 * The width of the row
+	 */
+	public final int width;
+	
+	/**
+	 * The character of each run in UTF-32, if negative it will have a special meaning, see {@link Cell#character}
+	 */
+	public int[] characters;
+	
+	/**
+	 * The upper colour of each run, in ARGB, see {@link Cell#upperColour}
+	 */
+	public int[] upper;
+	
+	/**
+	 * The lower colour of each run, in ARGB, see {@link Cell#lowerColour}
+	 */
+	public int[] lower;
+	
+	/**
+	 * The flags of each run, {@link #CELL}, {@link #UPPER} and {@link #LOWER}, and the format bits
+	 */
+	public short[] flags;
+	
+	/**
+	 * The column after the last column in each run, {@code null} if the row is not run-length encoded
+	 */
+	private int[] ends = null;
+	
+	/**
+	 * The first and the last column that is not blank, -1 if none, {@code null} if not yet
+	 * known, see {@link #firstNonBlank()}; rows are shared between clones that can be used
+	 * by different threads, so both columns are published at once, and never modified
+	 */
+	private volatile int[] extent = null;
+	
+	/**
+	 * The row's fingerprint, {@code null} if not yet known, see {@link #fingerprint()},
+	 * it is published in one field for the same reason as {@link #extent}
+	 */
+	private volatile Long hash = null;
+	
+	/**
+	 * Whether the row is used by more than one pony, see {@link Pony#writableRow(int)}
+	 */
+	private boolean shared = false;
+	
+	
+	
+	/**
+	 * Check whether there is a cell at a position
+	 * 
+	 * @param   x  The column
+	 * @return     Whether the cell is not {@code null}
+	 */
+	public boolean isCell(int x)
+	{
+	    return (this.flags[this.runOf(x)] & CELL) != 0;
+	}
+	
+	/**
+	 * Check whether a position is blank, that is, does not have a cell, is a space
+	 * without background colour, or is a pair of transparent pixels
+	 * 
+	 * @param   x  The column
+	 * @return     Whether the position is blank
+	 */
+	public boolean isBlank(int x)
+	{
+	    return this.isBlankRun(this.runOf(x));
+	}
+	
+	/**
+	 * Check whether the cells in a run are blank, see {@link #isBlank(int)}
+	 * 
+	 * @param   i  The run
+	 * @return     Whether the cells are blank
+	 */
+	public boolean isBlankRun(int i)
+	{
+	    int flags = this.flags[i];
+	    if ((flags & CELL) == 0)
+		return true;
+	    if ((flags & LOWER) != 0)
+		return false;
+	    int character = this.characters[i];
+	    return (character == ' ') || ((character == Cell.PIXELS) && ((flags & UPPER) == 0));
+	}
+	
+	/**
+	 * Get the upper colour of a cell
+	 * 
+	 * @param   x  The column
+	 * @return     The upper colour in ARGB, {@link Colour#NONE} if none or if there is no cell
+	 */
+	public int getUpper(int x)
+	{
+	    x = this.runOf(x);
+	    return (this.flags[x] & UPPER) == 0 ? Colour.NONE : this.upper[x];
+	}
+	
+	/**
+	 * Get the lower colour of a cell
+	 * 
+	 * @param   x  The column
+	 * @return     The lower colour in ARGB, {@link Colour#NONE} if none or if there is no cell
+	 */
+	public int getLower(int x)
+	{
+	    x = this.runOf(x);
+	    return (this.flags[x] & LOWER) == 0 ? Colour.NONE : this.lower[x];
+	}
+	
+	/**
+	 * Get the format of a cell
+	 * 
+	 * @param   x       The column
+	 * @param   format  Array of at least nine elements to store the format in
+	 * @return          {@code format}
+	 */
+	public boolean[] getFormat(int x, boolean[] format)
+	{
+	    int flags = this.flags[this.runOf(x)];
+	    for (int i = 0; i < 9; i++)
+		format[i] = ((flags >> i) & 1) != 0;
+	    return format;
+	}
+	
+	/**
+	 * Get a cell
+	 * 
+	 * @param   x  The column
+	 * @return     The cell, a new object, {@code null} if there is no cell
+	 */
+	public Cell get(int x)
+	{
+	    if (this.isCell(x) == false)
+		return null;
+	    return new Cell(this.characters[this.runOf(x)], this.getUpper(x), this.getLower(x), this.getFormat(x, new boolean[9]));
+	}
+	
+	/**
+	 * Replace a cell
+	 * 
+	 * @param  x     The column
+	 * @param  cell  The cell, it is copied, {@code null} to remove the cell
+	 */
+	public void set(int x, Cell cell)
+	{
+	    if (cell == null)
+		this.clear(x);
+	    else
+		this.set(x, cell.character, cell.upperColour, cell.lowerColour, cell.format);
+	}
+	
+	/**
+	 * Replace a cell, like {@code set(x, new Cell(character, upperColour, lowerColour, format))}
+	 * but without creating a cell
+	 * 
+	 * @param  x            The column
+	 * @param  character    The character in UTF-32, if negative it will have a special meaning
+	 * @param  upperColour  The upper colour in ARGB, may be {@link Colour#NONE}
+	 * @param  lowerColour  The lower colour in ARGB, may be {@link Colour#NONE}
+	 * @param  format       Formatting to apply, nine booleans, may be {@code null}
+	 */
+	public void set(int x, int character, int upperColour, int lowerColour, boolean[] format)
+	{
+	    this.decode();
+	    this.setRun(x, character, upperColour, lowerColour, format);
+	}
+	
+	/**
+	 * Replace all cells in a run, without decoding a run-length encoded row
+	 * 
+	 * @param  i            The run
+	 * @param  character    The character in UTF-32, if negative it will have a special meaning
+	 * @param  upperColour  The upper colour in ARGB, may be {@link Colour#NONE}
+	 * @param  lowerColour  The lower colour in ARGB, may be {@link Colour#NONE}
+	 * @param  format       Formatting to apply, nine booleans, may be {@code null}
+	 */
+	public void setRun(int i, int character, int upperColour, int lowerColour, boolean[] format)
+	{
+	    int flags = CELL;
+	    if (format != null)
+		for (int j = 0; j < 9; j++)
+		    if (format[j])
+			flags |= 1 << j;
+	    if ((character == Cell.PIXELS) || (character == ' ') || (character == ' '))
+		flags &= ~1;
+	    if (upperColour != Colour.NONE)
+		flags |= UPPER;
+	    if (lowerColour != Colour.NONE)
+		flags |= LOWER;
+	    this.upper[i] = upperColour;
+	    this.lower[i] = lowerColour;
+	    this.characters[i] = character;
+	    this.flags[i] = (short)flags;
+	    this.extent = null;
+	    this.hash = null;
+	}
+	
+	/**
+	 * Remove a cell
+	 * 
+	 * @param  x  The column
+	 */
+	public void clear(int x)
+	{
+	    this.decode();
+	    this.characters[x] = this.upper[x] = this.lower[x] = 0;
+	    this.flags[x] = 0;
+	    this.extent = null;
+	    this.hash = null;
+	}
+	
+	/**
+	 * Copy a cell from another row
+	 * 
+	 * @param  x       The column in this row
+	 * @param  source  The other row
+	 * @param  sx      The column in the other row
+	 */
+	public void copy(int x, Row source, int sx)
+	{
+	    this.decode();
+	    sx = source.runOf(sx);
+	    this.characters[x] = source.characters[sx];
+	    this.upper[x] = source.upper[sx];
+	    this.lower[x] = source.lower[sx];
+	    this.flags[x] = source.flags[sx];
+	    this.extent = null;
+	    this.hash = null;
+	}
+	
+	/**
+	 * Tell the row that its arrays have been modified directly, rather than
+	 * with {@link #set(int, Cell)} or a similar method, so that it stops
+	 * using what it remembers about its cells, see {@link #firstNonBlank()}
+	 * and {@link #fingerprint()}
+	 */
+	public void invalidate()
+	{
+	    this.extent = null;
+	    this.hash = null;
+	}
+	
+	/**
+	 * Create a row with another width, with the cells moved to the right
+	 * 
+	 * @param   offset  The number of columns to move the cells to the right, negative to move left
+	 * @param   width   The width of the new row
+	 * @return          The new row
+	 */
+	public Row resize(int offset, int width)
+	{
+	    int src = Math.max(0, -offset), dest = Math.max(0, offset);
+	    int n = Math.min(this.width - src, width - dest);
+	    if (this.ends == null)
+	    {   Row rc = new Row(width);
+		if (n > 0)
+		{   System.arraycopy(this.characters, src, rc.characters, dest, n);
+		    System.arraycopy(this.upper, src, rc.upper, dest, n);
+		    System.arraycopy(this.lower, src, rc.lower, dest, n);
+		    System.arraycopy(this.flags, src, rc.flags, dest, n);
+		}
+		return rc;
+	    }
+	    
+	    if (n <= 0)
+	    {   Row rc = new Row(width, width == 0 ? 0 : 1);
+		if (width != 0)
+		    rc.ends[0] = width;
+		return rc;
+	    }
+	    int first = this.runOf(src), last = this.runOf(src + n - 1);
+	    int runs = last - first + 1 + (dest == 0 ? 0 : 1) + (dest + n == width ? 0 : 1);
+	    Row rc = new Row(width, runs);
+	    int i = 0;
+	    if (dest != 0)
+		rc.ends[i++] = dest;
+	    System.arraycopy(this.characters, first, rc.characters, i, last - first + 1);
+	    System.arraycopy(this.upper, first, rc.upper, i, last - first + 1);
+	    System.arraycopy(this.lower, first, rc.lower, i, last - first + 1);
+	    System.arraycopy(this.flags, first, rc.flags, i, last - first + 1);
+	    for (int j = first; j <= last; j++)
+		rc.ends[i++] = Math.min(this.ends[j], src + n) + offset;
+	    if (i != runs)
+		rc.ends[i] = width;
+	    return rc;
+	}
+	
+	/**
+	 * Create a run-length encoded copy of the row, with one element in the
+	 * arrays per run of identical cells rather than one per column
+	 * 
+	 * @return  The encoded row, or this row if it is already encoded or if
+	 *          encoding would not make the row smaller
+	 */
+	public Row compress()
+	{
+	    if (this.ends != null)
+		return this;
+	    int runs = this.width == 0 ? 0 : 1;
+	    for (int x = 1; x < this.width; x++)
+		if (this.differs(x - 1, x))
+		    runs++;
+	    if (runs * 4 > this.width * 3)
+		return this;
+	    Row rc = new Row(this.width, runs);
+	    for (int x = 0, i = -1; x < this.width; x++)
+	    {   if ((x == 0) || this.differs(x - 1, x))
+		{   rc.characters[++i] = this.characters[x];
+		    rc.upper[i] = this.upper[x];
+		    rc.lower[i] = this.lower[x];
+		    rc.flags[i] = this.flags[x];
+		}
+		rc.ends[i] = x + 1;
+	    }
+	    rc.hash = this.hash;
+	    return rc;
+	}
+	
+	/**
+	 * Check whether two cells, or two runs in a run-length encoded row, are different
+	 * 
+	 * @param   x1  The index of one of the cells
+	 * @param   x2  The index of the other cell
+	 * @return      Whether the cells are different
+	 */
+	private boolean differs(int x1, int x2)
+	{
+	    return (this.characters[x1] != this.characters[x2]) || (this.flags[x1] != this.flags[x2])
+		|| (this.upper[x1] != this.upper[x2]) || (this.lower[x1] != this.lower[x2]);
+	}
+	
+	/**
+	 * Convert the row from run-length encoding, if encoded, so that there is one element per column
+	 */
+	private void decode()
+	{
+	    if (this.ends == null)
+		return;
+	    int[] characters = new int[this.width], upper = new int[this.width], lower = new int[this.width];
+	    short[] flags = new short[this.width];
+	    for (int i = 0, x = 0, n = this.ends.length; i < n; i++)
+		for (int end = this.ends[i]; x < end; x++)
+		{   characters[x] = this.characters[i];
+		    upper[x] = this.upper[i];
+		    lower[x] = this.lower[i];
+		    flags[x] = this.flags[i];
+		}
+	    this.characters = characters;
+	    this.upper = upper;
+	    this.lower = lower;
+	    this.flags = flags;
+	    this.ends = null;
+	}
+	
+	/**
+	 * Get the number of runs in the row
+	 * 
+	 * @return  The number of runs, the width if the row is not run-length encoded
+	 */
+	public int runs()
+	{
+	    return this.ends == null ? this.width : this.ends.length;
+	}
+	
+	/**
+	 * Get the run that contains a column
+	 * 
+	 * @param   x  The column
+	 * @return     The run, the index of the cell in the arrays
+	 */
+	public int runOf(int x)
+	{
+	    if (this.ends == null)
+		return x;
+	    int min = 0, max = this.ends.length - 1;
+	    while (min < max)
+	    {   int mid = (min + max) >>> 1;
+		if (this.ends[mid] <= x)
+		    min = mid + 1;
+		else
+		    max = mid;
+	    }
+	    return min;
+	}
+	
+	/**
+	 * Get the first column of a run
+	 * 
+	 * @param   i  The run
+	 * @return     The first column in the run
+	 */
+	public int runStart(int i)
+	{
+	    return this.ends == null ? i : i == 0 ? 0 : this.ends[i - 1];
+	}
+	
+	/**
+	 * Get the column after the last column of a run
+	 * 
+	 * @param   i  The run
+	 * @return     The column after the run
+	 */
+	public int runEnd(int i)
+	{
+	    return this.ends == null ? i + 1 : this.ends[i];
+	}
+	
+	/**
+	 * Get the first column that is not blank, see {@link #isBlank(int)}, the
+	 * first and last such columns are found in one pass and then remembered
+	 * until the row is modified
+	 * 
+	 * @return  The column, -1 if all columns are blank
+	 */
+	public int firstNonBlank()
+	{
+	    return this.extent()[0];
+	}
+	
+	/**
+	 * Get the last column that is not blank, see {@link #firstNonBlank()}
+	 * 
+	 * @return  The column, -1 if all columns are blank
+	 */
+	public int lastNonBlank()
+	{
+	    return this.extent()[1];
+	}
+	
+	/**
+	 * Get the first and the last column that is not blank, see {@link #extent}
+	 * 
+	 * @return  The columns, {@code {first, last}}, must not be modified
+	 */
+	private int[] extent()
+	{
+	    int[] rc = this.extent;
+	    if (rc == null)
+	    {   int i = 0, n = this.runs();
+		while ((i < n) && this.isBlankRun(i))
+		    i++;
+		if (i == n)
+		    rc = new int[] { -1, -1 };
+		else
+		{   int first = this.runStart(i);
+		    for (i = n - 1; this.isBlankRun(i); i--)
+			;
+		    rc = new int[] { first, this.runEnd(i) - 1 };
+		}
+		this.extent = rc;
+	    }
+	    return rc;
+	}
+	
+	/**
+	 * Get the first column, from a column, that is not blank
+	 * 
+	 * @param   x  The first column to check
+	 * @return     The column, -1 if all columns from {@code x} are blank
+	 */
+	public int nextNonBlank(int x)
+	{
+	    int[] extent = this.extent();
+	    int first = extent[0];
+	    if ((first < 0) || (x > extent[1]))
+		return -1;
+	    if (x <= first)
+		return first;
+	    for (int i = this.runOf(x);; i++)
+		if (this.isBlankRun(i) == false)
+		    return Math.max(x, this.runStart(i));
+	}
+	
+	/**
+	 * Get the last column, up to a column, that is not blank
+	 * 
+	 * @param   x  The last column to check
+	 * @return     The column, -1 if all columns up to {@code x} are blank
+	 */
+	public int previousNonBlank(int x)
+	{
+	    int[] extent = this.extent();
+	    int first = extent[0], last = extent[1];
+	    if ((first < 0) || (x < first))
+		return -1;
+	    if (x >= last)
+		return last;
+	    for (int i = this.runOf(x);; i--)
+		if (this.isBlankRun(i) == false)
+		    return Math.min(x, this.runEnd(i) - 1);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Row clone()
+	{
+	    Row rc = this.resize(0, this.width);
+	    rc.hash = this.hash;
+	    return rc;
+	}
+	
+	/**
+	 * Get a fingerprint of the cells in the row, that does not depend on whether
+	 * the row is run-length encoded, it is remembered until the row is modified
+	 * 
+	 * @return  The fingerprint
+	 */
+	public long fingerprint()
+	{
+	    Long rc = this.hash;
+	    if (rc == null)
+	    {   long hash = mix(0, this.width);
+		for (int i = 0, n = this.runs(); i < n;)
+		{   int j = i + 1;
+		    while ((j < n) && (this.differs(i, j) == false))
+			j++;
+		    hash = mix(hash, this.runEnd(j - 1) - this.runStart(i));
+		    hash = mix(mix(hash, this.characters[i]), this.flags[i]);
+		    hash = mix(mix(hash, this.upper[i]), this.lower[i]);
+		    i = j;
+		}
+		this.hash = rc = Long.valueOf(hash);
+	    }
+	    return rc.longValue();
+	}
+	
+    }
+    
+    
+    
+    /**
+     * Sparse storage for the metacells in a pony, sorted by row and column
+     * 
+     * <p>
+     *   Most positions in a pony have no metadata, so only the positions that have
+     *   are stored. They are kept sorted by the key {@code (row << 32) | column}, so
+     *   a row's metacells are adjacent, in column order, and can be iterated with
+     *   {@code for (int i = find(y, 0), e = find(y + 1, 0); i < e; i++)}.
+     * </p>
+     */
+    public static class MetaIndex
+    {
+	/**
+	 * Constructor, the index will be empty
+	 */
+	public MetaIndex()
+	{
+	    this.keys = new long[8];
+	    this.values = new Meta[8][];
+	}
+	
+	
+	
+	/**
+	 * The keys of the stored positions, sorted
+	 */
+	private long[] keys;
+	
+	/**
+	 * The metacell at each stored position
+	 */
+	private Meta[][] values;
+	
+	/**
+	 * The number of stored positions
+	 */
+	private int size = 0;
+	
+	/**
+	 * Whether the index is used by more than one pony, see {@link Pony#writableMetadata()}
+	 */
+	private boolean shared = false;
+	
+	
+	
+	/**
+	 * Get the key for a position
+	 * 
+	 * @param   y  The row
+	 * @param   x  The column
+	 * @return     The key
+	 */
+	private static long key(int y, int x)
+	{
+	    return ((long)y << 32) | (x & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Get the number of stored positions
+	 * 
+	 * @return  The number of positions with a metacell
+	 */
+	public int size()
+	{
+	    return this.size;
+	}
+	
+	/**
+	 * Get the index of the first stored position at or after a position
+	 * 
+	 * @param   y  The row
+	 * @param   x  The column
+	 * @return     The index, {@link #size()} if there is none
+	 */
+	public int find(int y, int x)
+	{
+	    int i = Arrays.binarySearch(this.keys, 0, this.size, key(y, x));
+	    return i < 0 ? ~i : i;
+	}
+	
+	/**
+	 * Get the row of a stored position
+	 * 
+	 * @param   i  The index of the position
+	 * @return     The row
+	 */
+	public int rowAt(int i)
+	{
+	    return (int)(this.keys[i] >> 32);
+	}
+	
+	/**
+	 * Get the column of a stored position
+	 * 
+	 * @param   i  The index of the position
+	 * @return     The column
+	 */
+	public int columnAt(int i)
+	{
+	    return (int)(this.keys[i]);
+	}
+	
+	/**
+	 * Get the metacell at a stored position
+	 * 
+	 * @param   i  The index of the position
+	 * @return     The metacell
+	 */
+	public Meta[] valueAt(int i)
+	{
+	    return this.values[i];
+	}
+	
+	/**
+	 * Get a metacell
+	 * 
+	 * @param   y  The row
+	 * @param   x  The column
+	 * @return     The metacell, {@code null} if none
+	 */
+	public Meta[] get(int y, int x)
+	{
+	    if (this.size == 0)
+		return null;
+	    int i = Arrays.binarySearch(this.keys, 0, this.size, key(y, x));
+	    return i < 0 ? null : this.values[i];
+	}
+	
+	/**
+	 * Replace a metacell
+	 * 
+	 * @param  y         The row
+	 * @param  x         The column
+	 * @param  metacell  The metacell, {@code null} to remove it
+	 */
+	public void put(int y, int x, Meta[] metacell)
+	{
+	    long key = key(y, x);
+	    int i = Arrays.binarySearch(this.keys, 0, this.size, key);
+	    if (i >= 0)
+		if (metacell != null)
+		    this.values[i] = metacell;
+		else
+		    this.remove(i, i + 1);
+	    else if (metacell != null)
+	    {   i = ~i;
+		if (this.size == this.keys.length)
+		{   this.keys = Arrays.copyOf(this.keys, this.size << 1);
+		    this.values = Arrays.copyOf(this.values, this.size << 1);
+		}
+		System.arraycopy(this.keys, i, this.keys, i + 1, this.size - i);
+		System.arraycopy(this.values, i, this.values, i + 1, this.size - i);
+		this.keys[i] = key;
+		this.values[i] = metacell;
+		this.size++;
+	    }
+	}
+	
+	/**
+	 * Remove the metacells in a part of a row
+	 * 
+	 * @param  y     The row
+	 * @param  from  The first column, inclusive
+	 * @param  to    The last column, exclusive
+	 */
+	public void remove(int y, int from, int to)
+	{
+	    this.remove(this.find(y, from), this.find(y, to));
+	}
+	
+	/**
+	 * Remove stored positions
+	 * 
+	 * @param  start  The index of the first position, inclusive
+	 * @param  end    The index of the last position, exclusive
+	 */
+	private void remove(int start, int end)
+	{
+	    if (start >= end)
+		return;
+	    System.arraycopy(this.keys, end, this.keys, start, this.size - end);
+	    System.arraycopy(this.values, end, this.values, start, this.size - end);
+	    Arrays.fill(this.values, this.size - (end - start), this.size, null);
+	    this.size -= end - start;
+	}
+	
+	/**
+	 * Get the metacells in a row as an array
+	 * 
+	 * @param   y        The row
+	 * @param   metarow  The array to fill, it is cleared first, positions outside it are ignored
+	 * @return           {@code metarow}
+	 */
+	public Meta[][] getRow(int y, Meta[][] metarow)
+	{
+	    Arrays.fill(metarow, null);
+	    for (int i = this.find(y, 0), e = this.find(y + 1, 0); i < e; i++)
+	    {   int x = this.columnAt(i);
+		if ((0 <= x) && (x < metarow.length))
+		    metarow[x] = this.values[i];
+	    }
+	    return metarow;
+	}
+	
+	/**
+	 * Replace the metacells in a row
+	 * 
+	 * @param  y        The row
+	 * @param  metarow  The metacells in the row, {@code null} elements are not stored
+	 */
+	public void setRow(int y, Meta[][] metarow)
+	{
+	    this.remove(this.find(y, 0), this.find(y + 1, 0));
+	    for (int x = 0, n = metarow.length; x < n; x++)
+		if (metarow[x] != null)
+		    this.put(y, x, metarow[x]);
+	}
+	
+	/**
+	 * Move all metacells
+	 * 
+	 * @param  dy  The number of rows to move the metacells down
+	 * @param  dx  The number of columns to move the metacells to the right
+	 */
+	public void move(int dy, int dx)
+	{
+	    for (int i = 0; i < this.size; i++)
+		this.keys[i] = key(this.rowAt(i) + dy, this.columnAt(i) + dx);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public MetaIndex clone()
+	{
+	    MetaIndex rc = new MetaIndex();
+	    rc.keys = Arrays.copyOf(this.keys, Math.max(8, this.size));
+	    rc.values = new Meta[rc.keys.length][];
+	    rc.size = this.size;
+	    for (int i = 0; i < this.size; i++)
+	    {   Meta[] tmetacell = this.values[i];
+		Meta[] rmetacell = rc.values[i] = new Meta[tmetacell.length];
+		for (int z = 0, m = tmetacell.length; z < m; z++)
+		    rmetacell[z] = tmetacell[z] == null ? null : tmetacell[z].clone();
+	    }
+	    return rc;
+	}
+	
     }
     
     
@@ -146,11 +1192,11 @@ public class Pony
 	 * Constructor
 	 * 
 	 * @param  character    The character duo in UTF-32, if negative it will have a special meaning, for example pixels or boolean link
-	 * @param  upperColour  The colour to apply to the upper pixed if a pixel, foreground colour if character, otherwise ignored, {@code null} is preferable for fully transparent
-	 * @param  lowerColour  The colour to apply to the lower pixed if a pixel, background colour if character, otherwise ignored, {@code null} is preferable for fully transparent
+	 * @param  upperColour  The colour to apply to the upper pixed if a pixel, foreground colour if character, otherwise ignored, in ARGB, {@link Colour#NONE} for fully transparent
+	 * @param  lowerColour  The colour to apply to the lower pixed if a pixel, background colour if character, otherwise ignored, in ARGB, {@link Colour#NONE} for fully transparent
 	 * @param  format       Formatting to apply, nine booleans
 	 */
-	public Cell(int character, Color upperColour, Color lowerColour, boolean[] format)
+	public Cell(int character, int upperColour, int lowerColour, boolean[] format)
 	{
 	    this.character = character;
 	    this.upperColour = upperColour;
@@ -171,14 +1217,14 @@ public class Pony
 	public int character;
 	
 	/**
-	 * The colour to apply to the upper pixed if a pixel, foreground colour if character, otherwise ignored, {@code null} is preferable for fully transparent
+	 * The colour to apply to the upper pixed if a pixel, foreground colour if character, otherwise ignored, in ARGB, {@link Colour#NONE} for fully transparent
 	 */
-	public Color upperColour;
+	public int upperColour;
 	
 	/**
-	 * The colour to apply to the lower pixed if a pixel, background colour if character, otherwise ignored, {@code null} is preferable for fully transparent
+	 * The colour to apply to the lower pixed if a pixel, background colour if character, otherwise ignored, in ARGB, {@link Colour#NONE} for fully transparent
 	 */
-	public Color lowerColour;
+	public int lowerColour;
 	
 	/**
 	 * Formatting to apply, nine booleans
@@ -227,11 +1273,11 @@ public class Pony
 	 * Constructor
 	 * 
 	 * @param  character         The character in UTF-32
-	 * @param  foregroundColour  Foreground colour to apply to the character
-	 * @param  backgroundColour  Background colour to apply to the character
+	 * @param  foregroundColour  Foreground colour to apply to the character, in ARGB, {@link Colour#NONE} for none
+	 * @param  backgroundColour  Background colour to apply to the character, in ARGB, {@link Colour#NONE} for none
 	 * @param  format            Formatting to apply, nine booleans
 	 */
-	public Combining(int character, Color foregroundColour, Color backgroundColour, boolean[] format)
+	public Combining(int character, int foregroundColour, int backgroundColour, boolean[] format)
 	{
 	    this.character = character;
 	    this.foregroundColour = foregroundColour;
@@ -250,14 +1296,14 @@ public class Pony
 	public int character;
 	
 	/**
-	 * Foreground colour to apply to the character
+	 * Foreground colour to apply to the character, in ARGB, {@link Colour#NONE} for none
 	 */
-	public Color foregroundColour;
+	public int foregroundColour;
 	
 	/**
-	 * Background colour to apply to the character
+	 * Background colour to apply to the character, in ARGB, {@link Colour#NONE} for none
 	 */
-	public Color backgroundColour;
+	public int backgroundColour;
 	
 	/**
 	 * Formatting to apply, nine booleans
@@ -290,11 +1336,11 @@ public class Pony
 	 * Constructor
 	 * 
 	 * @param  name              The name of the variable
-	 * @param  foregroundColour  Foreground colour to apply to the region
-	 * @param  backgroundColour  Background colour to apply to the region
+	 * @param  foregroundColour  Foreground colour to apply to the region, in ARGB, {@link Colour#NONE} for none
+	 * @param  backgroundColour  Background colour to apply to the region, in ARGB, {@link Colour#NONE} for none
 	 * @param  format            Formatting to apply, nine booleans
 	 */
-	public Recall(String name, Color foregroundColour, Color backgroundColour, boolean[] format)
+	public Recall(String name, int foregroundColour, int backgroundColour, boolean[] format)
 	{
 	    this.name = name;
 	    this.foregroundColour = foregroundColour;
@@ -313,14 +1359,14 @@ public class Pony
 	public String name;
 	
 	/**
-	 * Foreground colour to apply to the region
+	 * Foreground colour to apply to the region, in ARGB, {@link Colour#NONE} for none
 	 */
-	public Color foregroundColour;
+	public int foregroundColour;
 	
 	/**
-	 * Background colour to apply to the region
+	 * Background colour to apply to the region, in ARGB, {@link Colour#NONE} for none
 	 */
-	public Color backgroundColour;
+	public int backgroundColour;
 	
 	/**
 	 * Formatting to apply, nine booleans
@@ -0,0 +1,246 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Assembles imported cells and metacells into rows, for import modules
+ * 
+ * <p>
+ *   The cells are written directly into a growable row and the metadata
+ *   into a buffer for the next cell, so an import only needs a pass over
+ *   its input and a few objects per row. Each completed row is passed to a
+ *   {@link PonyModule.RowSink}, which can be a {@link Collector} to get
+ *   the whole pony.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class PonyBuilder
+{
+    /**
+     * Constructor
+     * 
+     * @param  sink  Receiver of the rows
+     */
+    public PonyBuilder(PonyModule.RowSink sink)
+    {
+	this.sink = sink;
+    }
+    
+    
+    
+    /**
+     * Receiver of the rows
+     */
+    private final PonyModule.RowSink sink;
+    
+    /**
+     * The cells in the current row, and room for more
+     */
+    private Pony.Row row = new Pony.Row(256);
+    
+    /**
+     * The metacells in the current row
+     */
+    private Pony.Meta[][] metarow = new Pony.Meta[257][];
+    
+    /**
+     * Metadata waiting for the next cell
+     */
+    private Pony.Meta[] metabuf = new Pony.Meta[256];
+    
+    /**
+     * The number of cells in the current row
+     */
+    private int x = 0;
+    
+    /**
+     * The number of elements in {@link #metabuf}
+     */
+    private int metaptr = 0;
+    
+    /**
+     * Whether any line has been ended
+     */
+    private boolean newlined = false;
+    
+    
+    
+    /**
+     * Start the pony, this is called before any cell or metadata is added
+     * 
+     * @param   comment  Metadata comment on pony, may be {@code null}
+     * @param   tags     Metadata tags, one {key, value} format, may be {@code null}
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void begin(String comment, String[][] tags) throws IOException
+    {
+	this.sink.begin(comment, tags);
+    }
+    
+    /**
+     * Add a cell to the current row
+     * 
+     * @param  character    The character in UTF-32, if negative it will have a special meaning
+     * @param  upperColour  The upper colour in ARGB, may be {@link Colour#NONE}
+     * @param  lowerColour  The lower colour in ARGB, may be {@link Colour#NONE}
+     * @param  format       Formatting to apply, may be {@code null}
+     */
+    public void add(int character, int upperColour, int lowerColour, boolean[] format)
+    {
+	this.flushMeta();
+	if (this.x == this.row.width)
+	{   this.row = this.row.resize(0, this.x << 1);
+	    this.metarow = Arrays.copyOf(this.metarow, (this.x << 1) + 1);
+	}
+	this.row.set(this.x++, character, upperColour, lowerColour, format);
+    }
+    
+    /**
+     * Add metadata before the next cell
+     * 
+     * @param  meta  The metadata
+     */
+    public void add(Pony.Meta meta)
+    {
+	if (this.metaptr == this.metabuf.length)
+	    this.metabuf = Arrays.copyOf(this.metabuf, this.metaptr << 1);
+	this.metabuf[this.metaptr++] = meta;
+    }
+    
+    /**
+     * End the current row
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void newline() throws IOException
+    {
+	this.flushMeta();
+	this.sink.row(this.row.resize(0, this.x), Arrays.copyOf(this.metarow, this.x + 1));
+	Arrays.fill(this.metarow, 0, this.x + 1, null);
+	this.x = 0;
+	this.newlined = true;
+    }
+    
+    /**
+     * End the last row, unless it is empty and follows a line break, and end the pony
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void end() throws IOException
+    {
+	if ((this.newlined == false) || (this.x != 0) || (this.metaptr != 0))
+	    this.newline();
+	this.sink.end();
+    }
+    
+    /**
+     * Attach waiting metadata to the current position
+     */
+    private void flushMeta()
+    {
+	if (this.metaptr != 0)
+	{   this.metarow[this.x] = Arrays.copyOf(this.metabuf, this.metaptr);
+	    this.metaptr = 0;
+	}
+    }
+        
+    
+    
+    /**
+     * Assembles rows into a pony, as they are received
+     * 
+     * <p>
+     *   The rows are stored in an array that grows as needed and their metacells
+     *   are added to the pony's {@link Pony.MetaIndex} directly. Rows that are
+     *   narrower than the widest row are widened by {@link #getPony()}.
+     * </p>
+     */
+    public static class Collector implements PonyModule.RowSink
+    {
+	/**
+	 * The pony, its rows array has room for more rows
+	 */
+	private final Pony pony = new Pony(0, 0, null, null);
+	
+	/**
+	 * Whether {@link #getPony()} has finished the pony
+	 */
+	private boolean finished = false;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void begin(String comment, String[][] tags)
+	{
+	    this.pony.comment = comment;
+	    this.pony.tags = tags;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void row(Pony.Row row, Pony.Meta[][] metarow)
+	{
+	    Pony pony = this.pony;
+	    if (pony.height == pony.rows.length)
+		pony.rows = Arrays.copyOf(pony.rows, Math.max(64, pony.height << 1));
+	    if (pony.width < row.width)
+		pony.width = row.width;
+	    pony.metadata.setRow(pony.height, metarow);
+	    pony.rows[pony.height++] = row;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void end()
+	{
+	    // Do nothing
+	}
+	
+	/**
+	 * Get the pony, after all rows have been received
+	 * 
+	 * @return  The pony
+	 */
+	public Pony getPony()
+	{
+	    Pony pony = this.pony;
+	    if (this.finished == false)
+	    {   this.finished = true;
+		if (pony.rows.length != pony.height)
+		    pony.rows = Arrays.copyOf(pony.rows, pony.height);
+		for (int y = 0, width = pony.width; y < pony.height; y++)
+		    if (pony.rows[y].width != width)
+			pony.rows[y] = pony.rows[y].resize(0, width);
+	    }
+	    return pony;
+	}
+	
+    }
+    
+}
@@ -0,0 +1,197 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Cache of imported ponies, for processes that import the same files again and again
+ * 
+ * <p>
+ *   Ponies are cached by import module, import flags, and the canonical path,
+ *   modification time and size of the file, so a modified file is imported again.
+ *   The cache never hands out the pony it holds, only copies of it, see
+ *   {@link Pony#clone()}, which share the rows until they are modified. The least
+ *   recently used ponies are removed when the ponies' total number of cells, counted
+ *   as runs for run-length encoded rows, exceeds the limit. The cache is disabled
+ *   until a limit is selected with {@link #setLimit(long)}.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class PonyCache
+{
+    /**
+     * Non-constructor
+     */
+    private PonyCache()
+    {
+	assert false : "This class [PonyCache] is not meant to be instansiated.";
+    }
+    
+    
+    
+    /**
+     * The limit used for {@code --cache y}, in cells
+     */
+    public static final long DEFAULT_LIMIT = 1 << 22;
+    
+    /**
+     * The maximum total size of the cached ponies, in cells, 0 if disabled
+     */
+    private static long limit = 0;
+    
+    /**
+     * The total size of the cached ponies, in cells
+     */
+    private static long size = 0;
+    
+    /**
+     * The cached ponies, in order of use, the least recently used first
+     */
+    private static final LinkedHashMap<String, Pony> ponies = new LinkedHashMap<String, Pony>(16, 0.75f, true);
+    
+    /**
+     * The sizes of the cached ponies, in cells
+     */
+    private static final HashMap<String, Long> sizes = new HashMap<String, Long>();
+    
+    
+    
+    /**
+     * Select the maximum total size of the cached ponies, ponies are
+     * removed from the cache if it is larger than the new limit
+     * 
+     * @param  cells  The limit in cells, 0 to disable the cache
+     */
+    public static synchronized void setLimit(long cells)
+    {
+	limit = Math.max(cells, 0);
+	evict();
+    }
+    
+    
+    /**
+     * Parse the value of {@code --cache}
+     * 
+     * @param   value  String representation
+     * @return         The limit in cells, {@link #DEFAULT_LIMIT} if the value
+     *                 starts with a ‘y’ or ‘Y’, 0 if not a number
+     */
+    public static long parseLimit(String value)
+    {
+	if (value.startsWith("y") || value.startsWith("Y"))
+	    return DEFAULT_LIMIT;
+	try
+	{   return Math.max(Long.parseLong(value), 0);
+	}
+	catch (Throwable err)
+	{   return 0;
+	}
+    }
+    
+    
+    /**
+     * Import a pony, or copy it from the cache
+     * 
+     * @param   importer  The import module
+     * @param   type      The name of the import module
+     * @param   params    The flags passed to the import module, may be {@code null}
+     * @return            The pony, it may be modified by the caller
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public static Pony importPony(PonyModule importer, String type, HashMap<String, String> params) throws IOException
+    {
+	String file = params == null ? null : params.get("file");
+	String key = null;
+	synchronized (PonyCache.class)
+	{   if ((limit > 0) && (file != null) && (file.equals("-") == false))
+		key = key(type, params, new File(file));
+	    if (key != null)
+	    {   Pony pony = ponies.get(key);
+		if (pony != null)
+		{   Stats.count(Stats.PONY_CACHE_HITS, 1);
+		    return pony.clone();
+	}   }   }
+	
+	Pony pony = importer.importPony();
+	if (key == null)
+	    return pony;
+	
+	long cells = 1;
+	for (final Pony.Row row : pony.rows)
+	    if (row != null)
+		cells += row.runs();
+	cells += pony.metadata.size();
+	
+	synchronized (PonyCache.class)
+	{   if ((cells <= limit) && (ponies.containsKey(key) == false))
+	    {   ponies.put(key, pony);
+		sizes.put(key, Long.valueOf(cells));
+		size += cells;
+		evict();
+	}   }
+	return pony.clone();
+    }
+    
+    
+    /**
+     * Remove the least recently used ponies until the cache is within its limit
+     */
+    private static void evict()
+    {
+	Iterator<Map.Entry<String, Pony>> iterator = ponies.entrySet().iterator();
+	while ((size > limit) && iterator.hasNext())
+	{   String key = iterator.next().getKey();
+	    iterator.remove();
+	    size -= sizes.remove(key).longValue();
+	}
+    }
+    
+    
+    /**
+     * Create the key of a pony
+     * 
+     * @param   type    The name of the import module
+     * @param   params  The flags passed to the import module
+     * @param   file    The file
+     * @return          The key, {@code null} if the file cannot be cached
+     * 
+     * @throws  IOException  On I/O error
+     */
+    private static String key(String type, HashMap<String, String> params, File file) throws IOException
+    {
+	if (file.isFile() == false)
+	    return null;
+	StringBuilder key = new StringBuilder();
+	key.append(type).append('\0');
+	key.append(file.getCanonicalPath()).append('\0');
+	key.append(file.lastModified()).append('\0');
+	key.append(file.length());
+	for (final String param : new TreeSet<String>(params.keySet()))
+	    if (param.equals("file") == false)
+		key.append('\0').append(param).append('=').append(params.get(param));
+	return key.toString();
+    }
+    
+}
+
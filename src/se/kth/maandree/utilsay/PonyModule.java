@@ -0,0 +1,454 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+
+
+/**
+ * Import/export module
+ * 
+ * <p>
+ *   Exporting is done in three steps, {@link #preparePony(Pony)} adjusts the
+ *   margins and inserts balloons, {@link #encodePony(Pony)} creates the output
+ *   and {@link #writePony(byte[])} writes it. The steps can be run by
+ *   different threads, but for each export all steps must be run on the
+ *   same instance and in order.
+ * </p>
+ * <p>
+ *   Modules that can work on one row at the time also implement
+ *   {@link #importRows(InputStream, RowSink)} and {@link #exportRows(int)},
+ *   this lets a conversion run in memory that depends on the width of the
+ *   pony rather than on its size.
+ * </p>
+ * <p>
+ *   A module only reads and writes its file, the streams given to
+ *   {@link #setStandardStreams(InputStream, OutputStream, PrintStream)}, or the
+ *   streams passed to the methods that take a stream, and writes its warnings to
+ *   the stream given to the former, so conversions with different instances can
+ *   run at the same time.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public abstract class PonyModule
+{
+    /**
+     * Input/output option: pony file
+     */
+    protected String file;
+    
+    /**
+     * The stream to read if no file has been specified
+     */
+    protected InputStream stdin = System.in;
+    
+    /**
+     * The stream to write if no file has been specified
+     */
+    protected OutputStream stdout = System.out;
+    
+    /**
+     * The stream to write warnings to
+     */
+    protected PrintStream stderr = System.err;
+    
+    
+    
+    /**
+     * Select the streams to use if no file has been specified,
+     * rather than {@link System#in} and {@link System#out}
+     * 
+     * @param  in   The stream to read, it will not be closed
+     * @param  out  The stream to write, it will not be closed
+     */
+    public void setStandardStreams(InputStream in, OutputStream out)
+    {
+	this.stdin = in;
+	this.stdout = out;
+    }
+    
+    /**
+     * Select the streams to use if no file has been specified, and the stream
+     * to write warnings to, rather than {@link System#in}, {@link System#out}
+     * and {@link System#err}
+     * 
+     * @param  in   The stream to read, it will not be closed
+     * @param  out  The stream to write, it will not be closed
+     * @param  err  The stream to write warnings to, it will not be closed
+     */
+    public void setStandardStreams(InputStream in, OutputStream out, PrintStream err)
+    {
+	this.setStandardStreams(in, out);
+	this.stderr = err;
+    }
+    
+    
+    /**
+     * Open the file for reading
+     * 
+     * @return  The stream to read, it is buffered
+     * 
+     * @throws  IOException  On I/O error
+     */
+    protected InputStream openFile() throws IOException
+    {
+	return new BufferedInputStream(new FileInputStream(this.file));
+    }
+    
+    
+    /**
+     * Import the pony from file
+     * 
+     * @return  The pony
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public Pony importPony() throws IOException
+    {
+	if (this.file == null)
+	    return this.importPony(this.stdin);
+	InputStream in = this.openFile();
+	try
+	{   return this.importPony(in);
+	}
+	finally
+	{   in.close();
+	}
+    }
+    
+    /**
+     * Import the pony from a stream
+     * 
+     * @param   in  The stream to read, it will not be closed
+     * @return      The pony
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public abstract Pony importPony(InputStream in) throws IOException;
+    
+    
+    /**
+     * Whether {@link #importRows(InputStream, RowSink)} is supported with the module's flags
+     * 
+     * @return  Whether rows can be imported
+     */
+    public boolean canImportRows()
+    {
+	return false;
+    }
+    
+    /**
+     * Import the pony from a stream, one row at the time
+     * 
+     * <p>
+     *   Modules that cannot import rows import the whole pony with
+     *   {@link #importPony(InputStream)} and then pass its rows to the sink.
+     * </p>
+     * 
+     * @param   in    The stream to read, it will not be closed
+     * @param   sink  Receiver of the rows, {@link RowSink#end()} is called at the end
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void importRows(InputStream in, RowSink sink) throws IOException
+    {
+	Pony pony = this.importPony(in);
+	sink.begin(pony.comment, pony.tags);
+	for (int y = 0; y < pony.height; y++)
+	{   Pony.Meta[][] metarow = new Pony.Meta[pony.rows[y].width + 1][];
+	    sink.row(pony.rows[y], pony.metadata == null ? metarow : pony.metadata.getRow(y, metarow));
+	}
+	sink.end();
+    }
+    
+    /**
+     * Import the pony from file, one row at the time
+     * 
+     * @param   sink  Receiver of the rows, {@link RowSink#end()} is called at the end
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void importRows(RowSink sink) throws IOException
+    {
+	if (this.file == null)
+	{   this.importRows(this.stdin, sink);
+	    return;
+	}
+	InputStream in = this.openFile();
+	try
+	{   this.importRows(in, sink);
+	}
+	finally
+	{   in.close();
+	}
+    }
+    
+    /**
+     * Get the width of the pony by importing it without keeping the rows,
+     * this is only possible if the pony is read from a file
+     * 
+     * @return  The width of the pony, -1 if it cannot be determined
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public int scanWidth() throws IOException
+    {
+	if ((this.file == null) || (this.canImportRows() == false))
+	    return -1;
+	final int[] width = { 0 };
+	this.importRows(new RowSink()
+	    {
+		public void begin(String comment, String[][] tags)
+		{
+		    // Do nothing
+		}
+		
+		public void row(Pony.Row row, Pony.Meta[][] metarow)
+		{
+		    if (width[0] < row.width)
+			width[0] = row.width;
+		}
+		
+		public void end()
+		{
+		    // Do nothing
+		}
+	    });
+	return width[0];
+    }
+    
+    
+    /**
+     * Export a pony to the file
+     * 
+     * @param  pony  The pony
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void exportPony(Pony pony) throws IOException
+    {
+	this.writePony(this.encodePony(this.preparePony(pony)));
+    }
+    
+    /**
+     * Export a pony to a stream
+     * 
+     * @param  pony  The pony
+     * @param  out   The stream to write, it will not be closed
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void exportPony(Pony pony, OutputStream out) throws IOException
+    {
+	this.writePony(this.encodePony(this.preparePony(pony)), out);
+    }
+    
+    /**
+     * Adjust the margins of, and insert balloons into, a pony that is being exported
+     * 
+     * @param   pony  The pony, may be modified
+     * @return        The pony to pass to {@link #encodePony(Pony)}
+     */
+    public Pony preparePony(Pony pony)
+    {
+	return pony;
+    }
+    
+    /**
+     * Create the output for a pony
+     * 
+     * @param   pony  The pony returned by {@link #preparePony(Pony)}
+     * @return        The output, {@code null} if nothing should be written
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public abstract byte[] encodePony(Pony pony) throws IOException;
+    
+    /**
+     * Whether {@link #exportRows(int)} is supported with the module's flags
+     * 
+     * @param   width  The width of the pony, -1 if unknown
+     * @return         Whether rows can be exported
+     */
+    public boolean canExportRows(int width)
+    {
+	return false;
+    }
+    
+    /**
+     * Start exporting a pony to the file, one row at the time
+     * 
+     * <p>
+     *   Modules that cannot export rows collect the rows and export the
+     *   whole pony with {@link #exportPony(Pony)} at the end.
+     * </p>
+     * 
+     * @param   width  The width of the pony, -1 if unknown
+     * @return         Receiver of the rows, the output is completed by {@link RowSink#end()}
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public RowSink exportRows(int width) throws IOException
+    {
+	return this.collectRows(null);
+    }
+    
+    /**
+     * Start exporting a pony to a stream, one row at the time
+     * 
+     * <p>
+     *   Modules that cannot export rows collect the rows and export the
+     *   whole pony with {@link #exportPony(Pony, OutputStream)} at the end.
+     * </p>
+     * 
+     * @param   width  The width of the pony, -1 if unknown
+     * @param   out    The stream to write, it will not be closed
+     * @return         Receiver of the rows, the output is completed by {@link RowSink#end()}
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public RowSink exportRows(int width, OutputStream out) throws IOException
+    {
+	return this.collectRows(out);
+    }
+    
+    /**
+     * Create a receiver that collects the rows into a pony and exports it at the end
+     * 
+     * @param   out  The stream to write, {@code null} for the file
+     * @return       Receiver of the rows, the pony is exported by {@link RowSink#end()}
+     */
+    private RowSink collectRows(final OutputStream out)
+    {
+	final PonyBuilder.Collector collector = new PonyBuilder.Collector();
+	return new RowSink()
+	    {
+		public void begin(String comment, String[][] tags)
+		{
+		    collector.begin(comment, tags);
+		}
+		
+		public void row(Pony.Row row, Pony.Meta[][] metarow)
+		{
+		    collector.row(row, metarow);
+		}
+		
+		public void end() throws IOException
+		{
+		    if (out == null)
+			PonyModule.this.exportPony(collector.getPony());
+		    else
+			PonyModule.this.exportPony(collector.getPony(), out);
+		}
+	    };
+    }
+    
+    
+    /**
+     * Open the file for writing
+     * 
+     * @return  The file, {@link #stdout} if no file has been specified
+     * 
+     * @throws  IOException  On I/O error
+     */
+    protected OutputStream openOutput() throws IOException
+    {
+	return this.file == null ? this.stdout : new FileOutputStream(this.file);
+    }
+    
+    /**
+     * Write the output to the file
+     * 
+     * @param   data  The output, {@code null} if nothing should be written
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void writePony(byte[] data) throws IOException
+    {
+	if (data == null)
+	    return;
+	if (this.file == null)
+	    this.writePony(data, this.stdout);
+	else
+	{   OutputStream out = new FileOutputStream(this.file); /* buffering is not needed, everything is written at once */
+	    try
+	    {   this.writePony(data, out);
+	    }
+	    finally
+	    {   out.close();
+	}   }
+    }
+    
+    /**
+     * Write the output to a stream
+     * 
+     * @param   data  The output, {@code null} if nothing should be written
+     * @param   out   The stream to write, it will not be closed
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public void writePony(byte[] data, OutputStream out) throws IOException
+    {
+	if (data == null)
+	    return;
+	Stats.count(Stats.OUTPUT_BYTES, data.length);
+	synchronized (out)
+	{   out.write(data);
+	    out.flush();
+	}
+    }
+    
+    
+    
+    /**
+     * Receiver of a pony, one row at the time
+     */
+    public static interface RowSink
+    {
+	/**
+	 * Receive the pony's metadata, this is called before any row
+	 * 
+	 * @param   comment  Metadata comment on pony, may be {@code null}
+	 * @param   tags     Metadata tags, one {key, value} format, may be {@code null}
+	 * 
+	 * @throws  IOException  On I/O error
+	 */
+	public void begin(String comment, String[][] tags) throws IOException;
+	
+	/**
+	 * Receive a row, the rows may have different widths
+	 * 
+	 * @param   row      The cells in the row, it is not modified by the caller afterwards
+	 * @param   metarow  The metacells in the row, one more than the cells
+	 * 
+	 * @throws  IOException  On I/O error
+	 */
+	public void row(Pony.Row row, Pony.Meta[][] metarow) throws IOException;
+	
+	/**
+	 * Called after the last row
+	 * 
+	 * @throws  IOException  On I/O error
+	 */
+	public void end() throws IOException;
+	
+    }
+    
+}
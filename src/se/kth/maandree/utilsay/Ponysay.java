@@ -20,8 +20,6 @@ package se.kth.maandree.utilsay;
 
 import java.io.*;
 import java.util.*;
-import java.awt.*;
-import java.awt.image.*;
 
 
 // This class should be tried to be keeped as optimised as possible for the
@@ -33,7 +31,7 @@ import java.awt.image.*;
  * 
  * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
  */
-public class Ponysay
+public class Ponysay extends PonyModule
 {
     /**
      * Until, and including, version 2.0 of ponysay the cowsay format was used
@@ -55,6 +53,21 @@ public class Ponysay
      */
     private static final int VERSION_HORIZONTAL_JUSTIFICATION = 3;
     
+    /**
+     * Metacells for a row without metadata
+     */
+    private static final Pony.Meta[][] NO_METADATA = new Pony.Meta[0][];
+    
+    /**
+     * The line that starts the metadata
+     */
+    private static final byte[] HEADER = { '$', '$', '$', '\n' };
+    
+    /**
+     * The size of the blocks that are read when only the metadata is imported
+     */
+    private static final int HEADER_BLOCK = 1 << 12;
+    
     
     
     /**
@@ -79,7 +92,23 @@ public class Ponysay
 	this.ignoreballoon = flags.containsKey("ignoreballoon") && flags.get("ignoreballoon").toLowerCase().startsWith("y");
 	this.ignorelink = flags.containsKey("ignorelink") ? flags.get("ignorelink").toLowerCase().startsWith("y") : this.ignoreballoon;
 	this.escesc = this.version > VERSION_COWSAY ? false : (flags.containsKey("escesc") && flags.get("escesc").toLowerCase().startsWith("y"));
+	this.headeronly = flags.containsKey("headeronly") && flags.get("headeronly").toLowerCase().startsWith("y");
 	
+	this.flags = flags;
+	this.submodule = this.createSubmodule(flags, true);
+    }
+    
+    
+    
+    /**
+     * Create the colouring submodule
+     * 
+     * @param   flags  Flags passed to the module
+     * @param   warn   Whether to warn, on first use, if the platform does not exist
+     * @return         The submodule
+     */
+    private PonysaySubmodule createSubmodule(HashMap<String, String> flags, boolean warn)
+    {
 	String platform = flags.get("platform");
 	if (platform != null)
         {   platform = platform.toLowerCase().replace("-", "").replace("_", "").replace(" ", "");
@@ -88,24 +117,36 @@ public class Ponysay
 	    platform = platform.intern();
 	}
 	if ((platform == "xterm") || (platform == "xterm256color"))
-	    this.submodule = new PonysayXterm(flags);
+	    return new PonysayXterm(flags);
 	else if ((platform == "linux") || (platform == "tty"))
-	    this.submodule = new PonysayLinux(flags);
+	    return new PonysayLinux(flags);
 	else if (platform == "haiku")
-	    this.submodule = new PonysayHaiku(flags);
-	else
-	{   this.submodule = new PonysayXterm(flags);
-	    if (platform != null)
-		System.err.println("\033[01;31mutil-say: warning: ponysay submodule does not exist: " + platform + "\033[00m");
+	    return new PonysayHaiku(flags);
+	
+	if (warn && (platform != null))
+	    this.unknownPlatform = platform;
+	return new PonysayXterm(flags);
+    }
+    
+    
+    /**
+     * Warn, once, if the platform does not exist, this is done when the submodule is first used
+     * rather than when the module is created, so that the warning is written to {@link #stderr}
+     */
+    private void usingSubmodule()
+    {
+	if (this.unknownPlatform != null)
+	{   this.stderr.println("\033[01;31mutil-say: warning: ponysay submodule does not exist: " + this.unknownPlatform + "\033[00m");
+	    this.unknownPlatform = null;
 	}
     }
     
     
     
     /**
-     * Input/output option: pony file
+     * Flags passed to the module
      */
-    protected String file;
+    private final HashMap<String, String> flags;
     
     /**
      * Input/output option: ignore the balloon
@@ -152,6 +193,11 @@ public class Ponysay
      */
     protected boolean escesc;
     
+    /**
+     * Input option: only import the metadata
+     */
+    protected boolean headeronly;
+    
     /**
      * Output option: left margin, negative for unmodified
      */
@@ -182,151 +228,76 @@ public class Ponysay
      */
     protected PonysaySubmodule submodule;
     
+    /**
+     * The platform that was requested but does not exist, {@code null} if none or if the warning has been written
+     */
+    private String unknownPlatform = null;
+    
+    /**
+     * The viewport created by {@link #preparePony(Pony)}, used by {@link #encodePony(Pony)}
+     */
+    private Viewport viewport = null;
+    
+    /**
+     * The default 256 colour palette, created on first use
+     */
+    private static int[] defaultColours = null;
+    
     
     
     /**
-     * Import the pony from file
-     * 
-     * @return  The pony
-     * 
-     * @throws  IOException  On I/O error
+     * {@inheritDoc}
      */
-    public Pony importPony() throws IOException
+    @Override
+    public boolean canImportRows()
+    {
+	return (this.version != VERSION_COWSAY) && (this.balloon < 0);
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void importRows(InputStream in, PonyModule.RowSink sink) throws IOException
     {
-	if (this.version == VERSION_COWSAY)
-	    return this.importCow();
-	
-	
 	boolean[] PLAIN = new boolean[9];
 	
-	Color[] colours = new Color[256];
+	int[] colours = getDefaultColours();
 	boolean[] format = new boolean[9];
-	Color background = null, foreground = null;
-	
-	for (int i = 0; i < 256; i++)
-	{   Colour colour = new Colour(i);
-	    colours[i] = new Color(colour.red, colour.green, colour.blue);
-	}
+	int background = Colour.NONE, foreground = Colour.NONE;
+	this.usingSubmodule();
 	submodule.initImport(colours);
-	
-	InputStream in = System.in;
-	if (this.file != null)
-	    in = new BufferedInputStream(new FileInputStream(this.file));
+	EscapeParser parser = new EscapeParser(this.submodule, colours, format, this.stderr);
 	
 	boolean dollar = false;
 	boolean escape = false;
+	int sequences = 0;
 	
 	int[] buf = new int[256];
 	int ptr = 0;
 	int dollareql = -1;
 	
-	int width = 0;
-	int curwidth = 0;
-	int height = 1;
+	PonyBuilder rows = new PonyBuilder(sink);
 	
-	LinkedList<Object> items = new LinkedList<Object>();
-	String comment = null;
-	String[][] tags = null;
-	int tagptr = 0;
-	
-	int[] unmetabuf = new int[4];
-	int unmetaptr = 0;
-	unmetabuf[unmetaptr++] = in.read();
-	unmetabuf[unmetaptr++] = in.read();
-	unmetabuf[unmetaptr++] = in.read();
-	unmetabuf[unmetaptr++] = in.read();
-	if ((unmetabuf[0] == '$') && (unmetabuf[1] == '$') && (unmetabuf[2] == '$') && (unmetabuf[3] == '\n'))
-	{   unmetaptr = 0;
-	    byte[] data = new byte[256];
-	    int d = 0;
-	    while ((d = in.read()) != -1)
-	    {
-		if (ptr == data.length)
-		    System.arraycopy(data, 0, data = new byte[ptr << 1], 0, ptr);
-		data[ptr++] = (byte)d;
-		if ((ptr >= 5) && (data[ptr - 1] == '\n') && (data[ptr - 2] == '$') && (data[ptr - 3] == '$') && (data[ptr - 4] == '$') && (data[ptr - 5] == '\n'))
-		{   ptr -= 5;
-		    break;
-		}
-		if ((ptr == 4) && (data[ptr - 1] == '\n') && (data[ptr - 2] == '$') && (data[ptr - 3] == '$') && (data[ptr - 4] == '$'))
-		{   ptr -= 4;
-		    break;
-		}
-	    }
-	    if (d == -1)
-		throw new RuntimeException("Metadata was never closed");
-	    String[] code = (new String(data, 0, ptr, "UTF-8")).split("\n");
-	    StringBuilder commentbuf = new StringBuilder();
-	    for (String line : code)
-	    {
-		int colon = line.indexOf(':');
-		boolean istag = colon > 0;
-		String name = null, value = null;
-		block: {
-		    if (istag)
-		    {	istag = false;
-			name = line.substring(0, colon).replace('\t', ' ');
-			value = line.substring(colon + 1).replace('\t', ' ');
-			char c;
-			for (int i = 0, n = name.length(); i < n; i++)
-			    if ((c = name.charAt(i)) != ' ')
-				if (('A' > c) || (c > 'Z'))
-				    break block;
-			istag = true;
-		    }}
-		if (istag)
-		{   if (tags == null)
-			tags = new String[32][];
-		    else if (tagptr == tags.length)
-			System.arraycopy(tags, 0, tags = new String[tagptr << 1][], 0, tagptr);
-		    tags[tagptr++] = new String[] {name.trim(), value.trim()};
-		}
-		else
-		{   commentbuf.append(line);
-		    commentbuf.append('\n');
-		}
-	    }
-	    ptr = 0;
-	    comment = commentbuf.toString();
-	    while ((ptr < comment.length()) && (comment.charAt(ptr) == '\n'))
-		ptr++;
-	    if (ptr > 0)
-	    {   comment = comment.substring(ptr);
-		ptr = 0;
-	    }
-	    if (comment.isEmpty())
-		comment = null;
-	    if ((tags != null) && (tagptr < tags.length))
-		System.arraycopy(tags, 0, tags = new String[tagptr][], 0, tagptr);
+	CodePointReader reader = this.headeronly ? new CodePointReader(in, HEADER_BLOCK) : new CodePointReader(in);
+	Header header = readHeader(reader);
+	rows.begin(header.comment, header.tags);
+	if (this.headeronly)
+	{   rows.end();
+	    return;
 	}
 	
-	for (int d = 0, stored = -1, c;;)
+	int[] chars = new int[CodePointReader.BLOCK];
+	for (int i = 0, n = 0, c;;)
 	{
-	    if (unmetaptr > 0)
-	    {   d = unmetabuf[3 - --unmetaptr];
-		if (d == -1)
+	    if (i == n)
+	    {   if ((n = reader.read(chars, 0, chars.length)) < 0)
 		    break;
+		i = 0;
 	    }
-	    else if ((d = stored) != -1)
-		stored = -1;
-	    else if ((d = in.read()) == -1)
-		break;
+	    c = chars[i++];
 	    
-	    if (((c = d) & 0x80) == 0x80)
-	    {   int n = 0;
-		while ((c & 0x80) == 0x80)
-		{   c <<= 1;
-		    n++;
-		}
-		c = (c & 255) >> n--;
-		while (((d = (unmetaptr > 0 ? unmetabuf[3 - --unmetaptr] : in.read())) & 0xC0) == 0x80)
-	        {   c = (c << 6) | (d & 0x3F);
-		    n--;
-		}
-		if (n != 0)
-		    System.err.println("\033[01;31mutil-say: warning: UTF-8 decoding balance should be 0 but is: " + n + "\033[00m");
-		stored = d;
-	    }
 	    if (dollar)
 		if ((c == '\033') && !escape)
 		    escape = true;
@@ -338,15 +309,11 @@ public class Ponysay
 			System.arraycopy(buf, 0, _name, 0, _name.length);
 			String name = Common.utf32to16(_name);
 			if (name.equals("\\"))
-		        {   curwidth++;
-			    items.add(new Pony.Cell(this.ignorelink ? ' ' : Pony.Cell.NNW_SSE, null, null, PLAIN));
-			}
+			    rows.add(this.ignorelink ? ' ' : Pony.Cell.NNW_SSE, Colour.NONE, Colour.NONE, PLAIN);
 			else if (name.equals("/"))
-		        {   curwidth++;
-			    items.add(new Pony.Cell(this.ignorelink ? ' ' : Pony.Cell.NNE_SSW, null, null, PLAIN));
-			}
+			    rows.add(this.ignorelink ? ' ' : Pony.Cell.NNE_SSW, Colour.NONE, Colour.NONE, PLAIN);
 			else if (name.startsWith("balloon") == false)
-			    items.add(new Pony.Recall(name, foreground, background, format));
+			    rows.add(new Pony.Recall(name, foreground, background, format));
 			else if (this.ignoreballoon == false)
 			{   String[] parts = (name.substring("balloon".length()) + ",,,,,,-").split(",");
 			    Integer h = parts[1].isEmpty() ? null : new Integer(parts[1]);
@@ -355,12 +322,12 @@ public class Ponysay
 			    else if (parts[0].contains("r"))  justify = Pony.Balloon.RIGHT;
 			    else if (parts[0].contains("c"))  justify = Pony.Balloon.CENTRE;
 			    else
-				items.add(new Pony.Balloon(null, null, parts[0].isEmpty() ? null : new Integer(parts[0]), h, null, null, Pony.Balloon.NONE));
+				rows.add(new Pony.Balloon(null, null, parts[0].isEmpty() ? null : new Integer(parts[0]), h, null, null, Pony.Balloon.NONE));
 			    if (justify != Pony.Balloon.NONE)
 			    {
 				parts = parts[0].replace('l', ',').replace('r', ',').replace('c', ',').split(",");
 				int part0 = Integer.parseInt(parts[0]), part1 = Integer.parseInt(parts[1]);
-				items.add(new Pony.Balloon(new Integer(part0), null, new Integer(part1 - part0 + 1), h, null, null, justify));
+				rows.add(new Pony.Balloon(new Integer(part0), null, new Integer(part1 - part0 + 1), h, null, null, justify));
 			}   }
 		    }
 		    else
@@ -368,7 +335,7 @@ public class Ponysay
 			System.arraycopy(buf, 0, name, 0, name.length);
 			int[] value = new int[ptr - dollareql - 1];
 			System.arraycopy(buf, dollareql + 1, value, 0, value.length);
-			items.add(new Pony.Store(Common.utf32to16(name), Common.utf32to16(value)));
+			rows.add(new Pony.Store(Common.utf32to16(name), Common.utf32to16(value)));
 		    }
 		    ptr = 0;
 		    dollareql = -1;
@@ -382,22 +349,18 @@ public class Ponysay
 		    buf[ptr++] = c;
 		}
 	    else if (escape)
-	    {   Object[] back_fore_state = this.submodule.parseEscape(c, background, foreground, format, colours);
-		background = (Color)(back_fore_state[0]);
-		foreground = (Color)(back_fore_state[1]);
-		escape = back_fore_state[2] == Boolean.TRUE;
+	    {   escape = parser.parse(c);
+		background = parser.background;
+		foreground = parser.foreground;
 	    }
 	    else if (c == '\033')
-		escape = true;
+	    {   escape = true;
+		sequences++;
+	    }
 	    else if (c == '$')
 		dollar = true;
 	    else if (c == '\n')
-	    {   if (width < curwidth)
-		    width = curwidth;
-		curwidth = 0;
-		height++;
-		items.add(null);
-	    }
+		rows.newline();
 	    else
 	    {	boolean combining = false;
 		if ((0x0300 <= c) && (c <= 0x036F))  combining = true;
@@ -405,258 +368,285 @@ public class Ponysay
 		if ((0x1DC0 <= c) && (c <= 0x1DFF))  combining = true;
 		if ((0xFE20 <= c) && (c <= 0xFE2F))  combining = true;
 		if (combining)
-		    items.add(new Pony.Combining(c, foreground, background, format));
+		    rows.add(new Pony.Combining(c, foreground, background, format));
 		else
-		{   curwidth++;
-		    Color fore = foreground == null ? colours[7] : foreground;
+		{   int fore = foreground == Colour.NONE ? colours[7] : foreground;
 		    if (c == '▀')
-			items.add(new Pony.Cell(Pony.Cell.PIXELS, fore, background, format));
+			rows.add(Pony.Cell.PIXELS, fore, background, format);
 		    else if (c == '▄')
-			items.add(new Pony.Cell(Pony.Cell.PIXELS, background, fore, format));
+			rows.add(Pony.Cell.PIXELS, background, fore, format);
 		    else if (c == '█')
-			items.add(new Pony.Cell(Pony.Cell.PIXELS, fore, fore, format));
+			rows.add(Pony.Cell.PIXELS, fore, fore, format);
 		    else if (c == ' ')
-			items.add(new Pony.Cell(Pony.Cell.PIXELS, background, background, format));
+			rows.add(Pony.Cell.PIXELS, background, background, format);
 		    else
-			items.add(new Pony.Cell(c, foreground, background, format));
+			rows.add(c, foreground, background, format);
 	    }   }
 	}
 	
-	if ((items.size() > 0) && (items.get(items.size() - 1) == null))
-	{   items.remove(items.size() - 1);
-	    height--;
+	Stats.count(Stats.ESCAPE_SEQUENCES, sequences);
+	if (reader.getMalformed() > 0)
+	    this.stderr.println("\033[01;31mutil-say: warning: " + reader.getMalformed() + " malformed UTF-8 sequences\033[00m");
+	rows.end();
+    }
+    
+    
+    /**
+     * Import only the metadata of the pony, the rest of the file is not read
+     * 
+     * @return  The metadata
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public Header importHeader() throws IOException
+    {
+	if (this.version == VERSION_COWSAY)
+	{   Pony pony = this.importPony();
+	    return new Header(pony.comment, pony.tags, 0);
 	}
+	if (this.file == null)
+	    return readHeader(new CodePointReader(this.stdin, HEADER_BLOCK));
+	InputStream in = this.openFile();
+	try
+	{   return readHeader(new CodePointReader(in, HEADER_BLOCK));
+	}
+	finally
+	{   in.close();
+	}
+    }
+    
+    
+    /**
+     * Read the metadata at the beginning of a pony, if it has any,
+     * the reader is left at the first byte after the metadata
+     * 
+     * @param   reader  The reader
+     * @return          The metadata
+     * 
+     * @throws  IOException  On I/O error
+     */
+    private static Header readHeader(CodePointReader reader) throws IOException
+    {
+	String comment = null;
+	String[][] tags = null;
+	int tagptr = 0, ptr = 0, length = 0;
 	
-	if (in != System.in)
-	    in.close();
-	
-	
-	Pony pony = new Pony(height, width, comment, tags);
-	int y = 0, x = 0;
-	Pony.Meta[] metabuf = new Pony.Meta[256];
-	int metaptr = 0;
-	
-	for (Object obj : items)
-	    if (obj == null)
+	if (reader.startsWith(HEADER))
+	{   for (int i = 0; i < HEADER.length; i++)
+		reader.readByte();
+	    length = HEADER.length;
+	    byte[] data = new byte[256];
+	    int d = 0;
+	    while ((d = reader.readByte()) != -1)
 	    {
-		if (metaptr != 0)
-		{   Pony.Meta[] metacell = new Pony.Meta[metaptr];
-		    System.arraycopy(metabuf, 0, metacell, 0, metaptr);
-		    pony.metamatrix[y][x] = metacell;
-		    metaptr = 0;
+		if (ptr == data.length)
+		    System.arraycopy(data, 0, data = new byte[ptr << 1], 0, ptr);
+		data[ptr++] = (byte)d;
+		length++;
+		if ((ptr >= 5) && (data[ptr - 1] == '\n') && (data[ptr - 2] == '$') && (data[ptr - 3] == '$') && (data[ptr - 4] == '$') && (data[ptr - 5] == '\n'))
+		{   ptr -= 5;
+		    break;
+		}
+		if ((ptr == 4) && (data[ptr - 1] == '\n') && (data[ptr - 2] == '$') && (data[ptr - 3] == '$') && (data[ptr - 4] == '$'))
+		{   ptr -= 4;
+		    break;
 		}
-		y++;
-		x = 0;
 	    }
-	    else if (obj instanceof Pony.Cell)
+	    if (d == -1)
+		throw new RuntimeException("Metadata was never closed");
+	    String[] code = (new String(data, 0, ptr, "UTF-8")).split("\n");
+	    StringBuilder commentbuf = new StringBuilder();
+	    for (String line : code)
 	    {
-		if (metaptr != 0)
-		{   Pony.Meta[] metacell = new Pony.Meta[metaptr];
-		    System.arraycopy(metabuf, 0, metacell, 0, metaptr);
-		    pony.metamatrix[y][x] = metacell;
-		    metaptr = 0;
+		int colon = line.indexOf(':');
+		boolean istag = colon > 0;
+		String name = null, value = null;
+		block: {
+		    if (istag)
+		    {	istag = false;
+			name = line.substring(0, colon).replace('\t', ' ');
+			value = line.substring(colon + 1).replace('\t', ' ');
+			char c;
+			for (int i = 0, n = name.length(); i < n; i++)
+			    if ((c = name.charAt(i)) != ' ')
+				if (('A' > c) || (c > 'Z'))
+				    break block;
+			istag = true;
+		    }}
+		if (istag)
+		{   if (tags == null)
+			tags = new String[32][];
+		    else if (tagptr == tags.length)
+			System.arraycopy(tags, 0, tags = new String[tagptr << 1][], 0, tagptr);
+		    tags[tagptr++] = new String[] {name.trim(), value.trim()};
+		}
+		else
+		{   commentbuf.append(line);
+		    commentbuf.append('\n');
 		}
-		Pony.Cell cell = (Pony.Cell)obj;
-		pony.matrix[y][x++] = cell;
 	    }
-	    else
-	    {
-		Pony.Meta meta = (Pony.Meta)obj;
-		if (metaptr == metabuf.length)
-		    System.arraycopy(metabuf, 0, metabuf = new Pony.Meta[metaptr << 1], 0, metaptr);
-		metabuf[metaptr++] = meta;
+	    ptr = 0;
+	    comment = commentbuf.toString();
+	    while ((ptr < comment.length()) && (comment.charAt(ptr) == '\n'))
+		ptr++;
+	    if (ptr > 0)
+	    {   comment = comment.substring(ptr);
+		ptr = 0;
 	    }
-	if (metaptr != 0)
-	{   Pony.Meta[] metacell = new Pony.Meta[metaptr];
-	    System.arraycopy(metabuf, 0, metacell, 0, metaptr);
-	    pony.metamatrix[y][x] = metacell;
-	    metaptr = 0;
+	    if (comment.isEmpty())
+		comment = null;
+	    if ((tags != null) && (tagptr < tags.length))
+		System.arraycopy(tags, 0, tags = new String[tagptr][], 0, tagptr);
 	}
-	
-	if (this.balloon >= 0)
-	    Common.insertBalloon(pony, this.balloon);
-	
-	pony.height = pony.matrix.length;
-	pony.width = pony.height == 0 ? 0 : pony.matrix[0].length;
-	return pony;
+	return new Header(comment, tags, length);
     }
     
     
     /**
-     * Import the pony from file using the cowsay format
+     * Open the file for reading, without buffering, the import reads
+     * large blocks and maps large files, see {@link CodePointReader}
      * 
-     * @return  The pony
+     * @return  The stream to read
      * 
      * @throws  IOException  On I/O error
      */
-    protected Pony importCow() throws IOException
+    @Override
+    protected InputStream openFile() throws IOException
     {
-	this.version++;
-	InputStream stdin = System.in;
+	return this.version == VERSION_COWSAY ? super.openFile() : new FileInputStream(this.file);
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int scanWidth() throws IOException
+    {
+	/* The import initialises the submodule, so the scan must not use the same submodule as the real import */
+	PonysaySubmodule submodule = this.submodule;
+	this.submodule = this.createSubmodule(this.flags, false);
 	try
-	{
-	    InputStream in = System.in;
-	    if (this.file != null)
-		in = new BufferedInputStream(new FileInputStream(this.file));
-	    Scanner sc = new Scanner(in, "UTF-8");
-	    
-	    StringBuilder cow = new StringBuilder();
-	    StringBuilder data = new StringBuilder();
-	    boolean meta = false;
-	    
-	    while (sc.hasNextLine())
-	    {
-		String line = sc.nextLine();
-		if (line.replace("\t", "").replace(" ", "").startsWith("#"))
-		{
-		    if (meta == false)
-		    {   meta = true;
-			data.append("$$$\n");
-		    }
-		    line = line.substring(line.indexOf("#") + 1);
-		    if (line.equals("$$$"))
-			line = "$$$(!)";
-		    data.append(line);
-		    data.append('\n');
-		}
-		else
-		{
-		    line = line.replace("$thoughts", "${thoughts}").replace("${thoughts}", "$\\$");
-		    line = line.replace("\\N{U+002580}", "▀");
-		    line = line.replace("\\N{U+002584}", "▄");
-		    line = line.replace("\\N{U+002588}", "█");
-		    line = line.replace("\\N{U+2580}", "▀");
-		    line = line.replace("\\N{U+2584}", "▄");
-		    line = line.replace("\\N{U+2588}", "█");
-		    line = line.replace("\\e", "\033");
-		    cow.append(line);
-		    cow.append('\n');
-		}
-	    }
-	    if (meta)
-		data.append("$$$\n");
-	    
-	    String pony = cow.toString();
-	    pony = pony.substring(pony.indexOf("$the_cow") + 8);
-	    pony = pony.substring(pony.indexOf("<<") + 2);
-	    String eop = pony.substring(0, pony.indexOf(";"));
-	    if (eop.startsWith("<")) /* here document */
-		pony = eop.substring(1);
-	    else
-	    {   pony = pony.substring(pony.indexOf('\n') + 1);
-		pony = pony.substring(0, pony.indexOf('\n' + eop + '\n'));
-	    }
-	    data.append("$balloon" + (pony.indexOf("$\\$") + 2) + "$\n");
-	    data.append(pony);
-	    
-	    final byte[] streamdata = data.toString().getBytes("UTF-8");
-	    System.setIn(new InputStream()
-		{
-		    int ptr = 0;
-		    @Override
-		    public int read()
-		    {
-			if (this.ptr == streamdata.length)
-			    return -1;
-			return streamdata[this.ptr++] & 255;
-		    }
-		    @Override
-		    public int available()
-		    {
-			return streamdata.length - this.ptr;
-		    }
-		});
-	    
-	    this.file = null;
-	    return this.importPony();
+	{   return super.scanWidth();
 	}
 	finally
-	{
-	    System.setIn(stdin);
+	{   this.submodule = submodule;
+	}
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public Pony importPony(InputStream in) throws IOException
+    {
+	if (this.version == VERSION_COWSAY)
+	    return this.importCow(in);
+	
+	PonyBuilder.Collector collector = new PonyBuilder.Collector();
+	this.importRows(in, collector);
+	Pony pony = collector.getPony();
+	
+	if ((this.balloon >= 0) && (this.headeronly == false))
+	{   Viewport view = new Viewport(pony);
+	    Common.insertBalloon(view, this.balloon);
+	    return view.toPony();
 	}
+	return pony;
     }
     
     
     /**
-     * Export a pony to the file
+     * Import the pony from a stream using the cowsay format
      * 
-     * @param  pony  The pony
+     * @param   in  The stream to read, it will not be closed
+     * @return      The pony
      * 
      * @throws  IOException  On I/O error
      */
-    public void exportPony(Pony pony) throws IOException
+    protected Pony importCow(InputStream in) throws IOException
     {
-	Color[] colours = new Color[256];
-	boolean[] format = new boolean[9];
-	Color background = null, foreground = null;
-	
-	for (int i = 0; i < 256; i++)
-	{   Colour colour = new Colour(i);
-	    colours[i] = new Color(colour.red, colour.green, colour.blue);
-	}
-	
-	String resetPalette = this.submodule.initExport(colours);
+	this.version++;
+	Scanner sc = new Scanner(in, "UTF-8");
 	
+	StringBuilder cow = new StringBuilder();
+	StringBuilder data = new StringBuilder();
+	boolean meta = false;
 	
-	StringBuilder databuf = new StringBuilder();
-	int curleft = 0, curright = 0, curtop = 0, curbottom = 0;
-	Pony.Cell[][] matrix = pony.matrix;
-	Pony.Meta[][][] metamatrix = pony.metamatrix;
-	boolean[][] plains = this.submodule.getPlains();
-	boolean[] PLAIN = plains[0];
-	boolean[] P1PLAIN = plains[1];
-	boolean[] P2PLAIN = plains[2];
-	
-	
-	if ((pony.tags != null) || (pony.comment != null))
-	    databuf.append("$$$\n");
-	if (pony.tags != null)
-	    for (String[] tag : pony.tags)
+	while (sc.hasNextLine())
+	{
+	    String line = sc.nextLine();
+	    if (line.replace("\t", "").replace(" ", "").startsWith("#"))
 	    {
-		databuf.append(tag[0].toUpperCase());
-		databuf.append(": ");
-		databuf.append(tag[1]);
-		databuf.append("\n");
+		if (meta == false)
+		{   meta = true;
+		    data.append("$$$\n");
+		}
+		line = line.substring(line.indexOf("#") + 1);
+		if (line.equals("$$$"))
+		    line = "$$$(!)";
+		data.append(line);
+		data.append('\n');
+	    }
+	    else
+	    {
+		line = line.replace("$thoughts", "${thoughts}").replace("${thoughts}", "$\\$");
+		line = line.replace("\\N{U+002580}", "▀");
+		line = line.replace("\\N{U+002584}", "▄");
+		line = line.replace("\\N{U+002588}", "█");
+		line = line.replace("\\N{U+2580}", "▀");
+		line = line.replace("\\N{U+2584}", "▄");
+		line = line.replace("\\N{U+2588}", "█");
+		line = line.replace("\\e", "\033");
+		cow.append(line);
+		cow.append('\n');
 	    }
-	if (pony.comment != null)
-	{
-	    if ((pony.tags != null) && (pony.tags.length != 0))
-		databuf.append('\n');
-	    String comment = '\n' + pony.comment.trim() + '\n';
-	    while (comment.contains("\n$$$\n"))
-		comment = comment.replace("\n$$$\n", "\n$$$(!)\n");
-	    comment = comment.substring(1, comment.length() - 1);
-	    databuf.append(comment);
 	}
-	if ((pony.tags != null) || (pony.comment != null))
-	    databuf.append("\n$$$\n");
+	if (meta)
+	    data.append("$$$\n");
 	
+	String pony = cow.toString();
+	pony = pony.substring(pony.indexOf("$the_cow") + 8);
+	pony = pony.substring(pony.indexOf("<<") + 2);
+	String eop = pony.substring(0, pony.indexOf(";"));
+	if (eop.startsWith("<")) /* here document */
+	    pony = eop.substring(1);
+	else
+	{   pony = pony.substring(pony.indexOf('\n') + 1);
+	    pony = pony.substring(0, pony.indexOf('\n' + eop + '\n'));
+	}
+	data.append("$balloon" + (pony.indexOf("$\\$") + 2) + "$\n");
+	data.append(pony);
 	
-	if (this.ignoreballoon)
-	    for (Pony.Meta[][] row : metamatrix)
-		for (Pony.Meta[] cell : row)
-		    if (cell != null)
-			for (int i = 0, n = cell.length; i < n; i++)
-			    if ((cell[i] != null) && (cell[i] instanceof Pony.Balloon))
-				row[i] = null;
+	return this.importPony(new ByteArrayInputStream(data.toString().getBytes("UTF-8")));
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Pony preparePony(Pony pony)
+    {
+	Pony.Row[] rows = pony.rows;
+	Pony.MetaIndex metadata = pony.metadata;
+	this.usingSubmodule();
+	boolean[] PLAIN = this.submodule.getPlains()[0];
 	
-	if (this.ignorelink)
-	    for (Pony.Cell[] row : matrix)
-		for (int i = 0, n = row.length; i < n; i++)
-		{   Pony.Cell cell;
-		    if ((cell = row[i]) != null)
-			if (this.ignorelink && ((cell.character == Pony.Cell.NNE_SSW) || (cell.character == Pony.Cell.NNW_SSE)))
-			    row[i] = new Pony.Cell(' ', null, null, PLAIN);
-			else
-			{   Color back = ((cell.lowerColour == null) || (cell.lowerColour.getAlpha() < 112)) ? null : cell.lowerColour;
-			    Color fore = ((cell.upperColour == null) || (cell.upperColour.getAlpha() < 112)) ? null : cell.upperColour;
-			    row[i] = new Pony.Cell(cell.character, back, fore, cell.format); /* the alpha channel does not need to be set to 255 */
-			}
-	        }
+	Pony.Meta[][] metarow = new Pony.Meta[pony.width + 1][];
+	for (int y = 0, h = rows.length; y < h; y++)
+	{   Pony.Row row = this.ignorelink ? pony.writableRow(y) : rows[y];
+	    if (this.ignoreballoon && (metadata.find(y, 0) != metadata.find(y + 1, 0)))
+	    {   metadata = pony.writableMetadata();
+		this.prepareRow(row, metadata.getRow(y, metarow), PLAIN);
+		metadata.setRow(y, metarow);
+	    }
+	    else
+		this.prepareRow(row, NO_METADATA, PLAIN);
+	}
 	
-	int[] margins = Common.changeMargins(pony, this.left, this.right, this.top, this.bottom);
-	matrix = pony.matrix;
-	metamatrix = pony.metamatrix;
+	Viewport view = this.viewport = new Viewport(pony);
+	int[] margins = Common.changeMargins(view, this.left, this.right, this.top, this.bottom);
 	this.left = margins[0];
 	this.right = margins[1];
 	this.top = margins[2];
@@ -675,270 +665,79 @@ public class Ponysay
 	*/
 	
 	if (this.right != 0)
-	{   int w = matrix[0].length, r = metamatrix[0].length - this.right;
-	    Pony.Meta[] leftovers = new Pony.Meta[32];
-	    for (int y = this.top, h = matrix.length - this.bottom; y < h; y++)
-	    {
-		int ptr = 0;
-		Pony.Meta[][] metarow = metamatrix[y];
-		
-		for (int x = r; x <= w; x++)
-		    if (metarow[x] != null)
-			for (Pony.Meta meta : metarow[x])
-			    if ((meta != null) && (meta instanceof Pony.Store))
-			    {   if (ptr == leftovers.length)
-				    System.arraycopy(leftovers, 0, leftovers = new Pony.Meta[ptr << 1], 0, ptr);
-				leftovers[ptr++] = meta;
-			    }
-		
-		if (ptr != 0)
-		{   Pony.Meta[] metacell = metarow[r];
-		    System.arraycopy(metacell, 0, metarow[r] = metacell = new Pony.Meta[metacell.length + ptr], 0, metacell.length - ptr);
-		    System.arraycopy(leftovers, 0, metacell, metacell.length - ptr, ptr);
-		}
-		System.arraycopy(matrix[y], 0, matrix[y] = new Pony.Cell[w - this.right], 0, w - this.right);
-		System.arraycopy(metarow, 0, metamatrix[y] = new Pony.Meta[w - this.right + 1][], 0, w - this.right + 1);
-	    }
-	}
-	
+	    view.pad(0, -this.right, 0, 0);
 	
 	if (this.balloon >= 0)
-	{   int _h = pony.height;
-	    int _w = pony.width;
-	    Pony.Cell[][] _m = pony.matrix;
-	    Pony.Meta[][][] _mm = pony.metamatrix;
-	    pony.height = matrix.length;
-	    pony.width = matrix[0].length;
-	    pony.matrix = matrix;
-	    pony.metamatrix = metamatrix;
-	    Common.insertBalloon(pony, this.balloon);
-	    matrix = pony.matrix;
-	    metamatrix = pony.metamatrix;
-	    pony.height = _h;
-	    pony.width = _w;
-	    pony.matrix = _m;
-	    pony.metamatrix = _mm;
-	}
+	    Common.insertBalloon(view, this.balloon);
 	
+	return pony;
+    }
+    
+    
+    /**
+     * Remove balloons and links from a row that is being exported, if
+     * {@link #ignoreballoon} and {@link #ignorelink} say so
+     * 
+     * @param  row      The cells in the row, will be modified
+     * @param  metarow  The metacells in the row, will be modified
+     * @param  PLAIN    Plain format
+     */
+    private void prepareRow(Pony.Row row, Pony.Meta[][] metarow, boolean[] PLAIN)
+    {
+	if (this.ignoreballoon)
+	    for (Pony.Meta[] cell : metarow)
+		if (cell != null)
+		    for (int i = 0, n = cell.length; i < n; i++)
+			if ((cell[i] != null) && (cell[i] instanceof Pony.Balloon))
+			    metarow[i] = null;
 	
-	int[] endings = null;
-	if (this.even == false)
-	{
-	    int w = matrix[0].length;
-	    endings = new int[matrix.length];
-	    for (int y = 0, h = matrix.length; y < h; y++)
-	    {
-		Pony.Cell[] row = matrix[y];
-		Pony.Meta[][] metarow = metamatrix[y];
-		int cur = 0;
-		mid:
-		    for (int n = w - 1; cur <= n; cur++)
-		    {
-			boolean cellpass = true;
-			Pony.Cell cell = row[n - cur];
-			if (cell != null)
-			    if ((cell.character != ' ') || (cell.lowerColour != null))
-				if ((cell.character != Pony.Cell.PIXELS) || (cell.lowerColour != null) || (cell.upperColour != null))
-				    cellpass = false;
-			Pony.Meta[] meta = metarow[n - cur];
-			if ((meta != null) && (meta.length != 0))
-			{   for (int k = 0, l = meta.length; k < l; k++)
-				if ((meta[k] != null) && ((meta[k] instanceof Pony.Store) == false))
-				    if ((cellpass == false) || (meta[k] instanceof Pony.Balloon))
-					break mid;
-			}
-			else
-			    if (cellpass == false)
-				break mid;
+	if (this.ignorelink)
+	{   for (int i = 0, n = row.runs(); i < n; i++)
+		if ((row.flags[i] & Pony.Row.CELL) != 0)
+		    if ((row.characters[i] == Pony.Cell.NNE_SSW) || (row.characters[i] == Pony.Cell.NNW_SSE))
+			row.setRun(i, ' ', Colour.NONE, Colour.NONE, PLAIN);
+		    else
+		    {   int flags = row.flags[i], back = row.lower[i], fore = row.upper[i];
+			boolean hasback = ((flags & Pony.Row.LOWER) != 0) && ((back >>> 24) >= 112);
+			boolean hasfore = ((flags & Pony.Row.UPPER) != 0) && ((fore >>> 24) >= 112);
+			flags &= ~(Pony.Row.UPPER | Pony.Row.LOWER);
+			row.upper[i] = hasback ? back : 0;
+			row.lower[i] = hasfore ? fore : 0;
+			row.flags[i] = (short)(flags | (hasback ? Pony.Row.UPPER : 0) | (hasfore ? Pony.Row.LOWER : 0));
+			/* the alpha channel does not need to be set to 255 */
 		    }
-		endings[y] = w - cur;
-	    }
+	    row.invalidate();
 	}
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] encodePony(Pony pony) throws IOException
+    {
+	int[] colours = getDefaultColours();
+	this.usingSubmodule();
+	String resetPalette = this.submodule.initExport(colours);
 	
 	
-	Pony.Cell defaultcell = new Pony.Cell(Pony.Cell.PIXELS, null, null, PLAIN);
-	for (int y = this.top, h = matrix.length - this.bottom; y < h; y++)
-	{
-	    Pony.Cell[] row = matrix[y];
-	    Pony.Meta[][] metarow = metamatrix[y];
-	    int ending = endings == null ? row.length : endings[y];
-	    int balloonend = -1;
-	    for (int x = 0, w = row.length; x <= w; x++)
-	    {   Pony.Meta[] metacell = metarow[x];
-		if (metacell != null)
-		    for (int z = 0, d = metacell.length; z < d; z++)
-		    {   Pony.Meta meta = metacell[z];
-			if ((meta != null) && ((x >= this.left) || (meta instanceof Pony.Store)))
-			{   Class<?> metaclass = meta.getClass();
-			    if (metaclass == Pony.Store.class)
-				databuf.append("$" + (((Pony.Store)meta).name + "=" + ((Pony.Store)meta).value).replace("$", "\033$") + "$");
-			    else if (metaclass == Pony.Recall.class)
-			    {   Pony.Recall recall = (Pony.Recall)meta;
-				Color back = ((recall.backgroundColour == null) || (recall.backgroundColour.getAlpha() < 112)) ? null : recall.backgroundColour;
-				Color fore = ((recall.foregroundColour == null) || (recall.foregroundColour.getAlpha() < 112)) ? null : recall.foregroundColour;
-				databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = back, foreground = fore, recall.format));
-				databuf.append("$" + recall.name.replace("$", "\033$") + "$");
-			    }
-			    else if (metaclass == Pony.Combining.class)
-			    {   Pony.Combining combining = (Pony.Combining)meta;
-				databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = combining.backgroundColour, foreground = combining.foregroundColour, combining.format));
-				databuf.append(combining.character);
-			    }
-			    else if (metaclass == Pony.Balloon.class)
-			    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = null, PLAIN));
-				Pony.Balloon balloon = (Pony.Balloon)meta;
-				if (balloon.left != null)
-				{   int justification = balloon.minWidth != null ? balloon.justification & (Pony.Balloon.LEFT | Pony.Balloon.RIGHT) : Pony.Balloon.NONE;
-				    switch (justification)
-				    {	case Pony.Balloon.NONE:
-					    char[] spaces = new char[balloon.left.intValue()];
-					    Arrays.fill(spaces, ' ');
-					    databuf.append(new String(spaces));
-					    databuf.append("$balloon" + balloon.left.intValue());
-					    break;
-					case Pony.Balloon.LEFT:
-					    databuf.append("$balloon" + balloon.left.intValue() + "l");
-					    databuf.append(balloon.left.intValue() + balloon.minWidth.intValue() - 1);
-					    break;
-					case Pony.Balloon.RIGHT:
-					    databuf.append("$balloon" + balloon.left.intValue() + "r");
-					    databuf.append(balloon.left.intValue() + balloon.minWidth.intValue() - 1);
-					    break;
-					default:
-					    databuf.append("$balloon" + balloon.left.intValue() + "c");
-					    databuf.append(balloon.left.intValue() + balloon.minWidth.intValue() - 1);
-					    break;
-				}   }
-				else if (balloon.minWidth != null)
-				    databuf.append("$balloon" + balloon.minWidth.toString());
-				else
-				    databuf.append("$balloon");
-				// KEYWORD: not supported in ponysay: balloon.top != null
-				if (balloon.minHeight != null)
-				    databuf.append("," + balloon.minHeight.toString());
-				// KEYWORD: not supported in ponysay: balloon.maxWidth != null
-				// KEYWORD: not supported in ponysay: balloon.maxHeight != null
-				databuf.append("$");
-				balloonend = 0;
-		    }	}   }
-		if ((x != w) && (x >= this.left) && (x < ending))
-		{   Pony.Cell cell = row[x];
-		    if (cell == null)
-			cell = defaultcell;
-		    if (cell.character >= 0)
-		        if (balloonend < 0)
-			{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = cell.lowerColour, foreground = cell.upperColour, cell.format));
-			    databuf.append(Common.utf32to16(cell.character));
-			}
-			else if (((cell.character == ' ') || (cell.character == ' ')) && (cell.lowerColour == null))
-			    balloonend++;
-			else
-			{   if (balloonend >= 0)
-			    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = this.spacesave ? foreground : null, PLAIN));
-				for (int i = 0; i < balloonend; i++)
-				    databuf.append(' ');
-				balloonend = -1;
-			    }
-			    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = cell.lowerColour, foreground = cell.upperColour, cell.format));
-			    databuf.append(Common.utf32to16(cell.character));
-			}
-		    else if (cell.character == Pony.Cell.NNW_SSE)
-		    {   if (balloonend >= 0)
-			{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = null, PLAIN));
-			    for (int i = 0; i < balloonend; i++)
-				databuf.append(' ');
-			    balloonend = -1;
-			}
-			databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = null, PLAIN));
-			databuf.append("$\\$");
-		    }
-		    else if (cell.character == Pony.Cell.NNE_SSW)
-		    {   if (balloonend >= 0)
-			{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = null, PLAIN));
-			    for (int i = 0; i < balloonend; i++)
-				databuf.append(' ');
-			    balloonend = -1;
-			}
-			databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = null, PLAIN));
-			databuf.append("$/$");
-		    }
-		    else if (cell.character == Pony.Cell.PIXELS)
-			if (cell.lowerColour == null)
-			    if (cell.upperColour == null)
-			    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = this.spacesave ? foreground : null, PLAIN));
-				if (balloonend >= 0)
-				    balloonend++;
-				else
-				    databuf.append(' ');
-			    }
-			    else
-			    {   if (balloonend >= 0)
-				{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = this.spacesave ? foreground : null, PLAIN));
-				    for (int i = 0; i < balloonend; i++)
-					databuf.append(' ');
-				    balloonend = -1;
-				}
-				databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = cell.upperColour, P1PLAIN));
-				databuf.append('▀');
-			    }
-			else
-			    if (cell.upperColour == null)
-			    {   if (balloonend >= 0)
-				{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = this.spacesave ? foreground : null, PLAIN));
-				    for (int i = 0; i < balloonend; i++)
-					databuf.append(' ');
-				    balloonend = -1;
-				}
-				databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = cell.lowerColour, P1PLAIN));
-				databuf.append('▄');
-			    }
-			    else if (cell.upperColour.equals(cell.lowerColour))
-				if (this.zebra)
-				{   if (balloonend >= 0)
-				    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = this.spacesave ? foreground : null, PLAIN));
-					for (int i = 0; i < balloonend; i++)
-					    databuf.append(' ');
-					balloonend = -1;
-				    }
-				    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = cell.lowerColour, foreground = cell.lowerColour, P2PLAIN));
-				    databuf.append('▄');
-				}
-				else if (this.fullblocks)
-				{   if (balloonend >= 0)
-				    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = this.spacesave ? foreground : null, PLAIN));
-					for (int i = 0; i < balloonend; i++)
-					    databuf.append(' ');
-					balloonend = -1;
-				    }
-				    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = this.spacesave ? background : cell.lowerColour, foreground = cell.lowerColour, P1PLAIN));
-				    databuf.append('█');
-				}
-				else
-				{   if (balloonend >= 0)
-				    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = this.spacesave ? foreground : null, PLAIN));
-					for (int i = 0; i < balloonend; i++)
-					    databuf.append(' ');
-					balloonend = -1;
-				    }
-				    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = cell.lowerColour, foreground = this.spacesave ? foreground : cell.lowerColour, PLAIN));
-				    databuf.append(' ');
-				}
-			    else
-			    {	if (balloonend >= 0)
-				{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = this.spacesave ? foreground : null, PLAIN));
-				    for (int i = 0; i < balloonend; i++)
-					databuf.append(' ');
-				    balloonend = -1;
-				}
-				databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = cell.upperColour, foreground = cell.lowerColour, P2PLAIN));
-				databuf.append('▄');  //TODO (this.colourful && ¿can get better colour?) → flip
-			    }
-		}
-	    }
-	    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = null, foreground = null, format));
-	    background = foreground = null;
-	    format = new boolean[9];
-	    databuf.append("\033[00m\n");
+	StringBuilder databuf = new StringBuilder();
+	Viewport view = ((this.viewport != null) && (this.viewport.pony == pony)) ? this.viewport : new Viewport(pony);
+	this.viewport = null;
+	boolean[][] plains = this.submodule.getPlains();
+	
+	
+	encodeHeader(databuf, pony.comment, pony.tags);
+	
+	
+	int w = view.width;
+	Pony.Meta[][] metarow = new Pony.Meta[w + 1][];
+	for (int y = this.top, h = view.height - this.bottom; y < h; y++)
+	{   Pony.Row row = view.row(y);
+	    int link = view.link(y);
+	    view.getMetaRow(y, metarow);
+	    int ending = this.even ? w : view.lastSolid(y) + 1;
+	    this.encodeRow(databuf, colours, plains, row, view.left, w, link, metarow, ending);
 	}
 	
 	
@@ -1037,13 +836,353 @@ public class Ponysay
 	if (this.escesc)
 	    data = data.replace("\033", "\\e");
 	
-	OutputStream out = System.out;
-	if (this.file != null)
-	    out = new FileOutputStream(this.file); /* buffering is not needed, everything is written at once */
-	out.write(data.getBytes("UTF-8"));
-	out.flush();
-	if (out != System.out)
-	    out.close();
+	this.submodule.recordStats();
+	return data.getBytes("UTF-8");
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canExportRows(int width)
+    {
+	return (this.version == VERSION_HORIZONTAL_JUSTIFICATION) && (this.balloon < 0)
+	    && (this.left < 0) && (this.right < 0) && (this.top < 0) && (this.bottom < 0)
+	    && ((this.even == false) || (width >= 0));
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PonyModule.RowSink exportRows(int width) throws IOException
+    {
+	if (this.canExportRows(width) == false)
+	    return super.exportRows(width);
+	this.left = this.right = this.top = this.bottom = 0;
+	return new RowEncoder(this.openOutput(), this.file != null, width);
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PonyModule.RowSink exportRows(int width, OutputStream out) throws IOException
+    {
+	if (this.canExportRows(width) == false)
+	    return super.exportRows(width, out);
+	this.left = this.right = this.top = this.bottom = 0;
+	return new RowEncoder(out, false, width);
+    }
+    
+    
+    /**
+     * Create the metadata block
+     * 
+     * @param  databuf  The output buffer
+     * @param  comment  Metadata comment on pony, may be {@code null}
+     * @param  tags     Metadata tags, one {key, value} format, may be {@code null}
+     */
+    private static void encodeHeader(StringBuilder databuf, String comment, String[][] tags)
+    {
+	if ((tags != null) || (comment != null))
+	    databuf.append("$$$\n");
+	if (tags != null)
+	    for (String[] tag : tags)
+	    {
+		databuf.append(tag[0].toUpperCase());
+		databuf.append(": ");
+		databuf.append(tag[1]);
+		databuf.append("\n");
+	    }
+	if (comment != null)
+	{
+	    if ((tags != null) && (tags.length != 0))
+		databuf.append('\n');
+	    String _comment = '\n' + comment.trim() + '\n';
+	    while (_comment.contains("\n$$$\n"))
+		_comment = _comment.replace("\n$$$\n", "\n$$$(!)\n");
+	    _comment = _comment.substring(1, _comment.length() - 1);
+	    databuf.append(_comment);
+	}
+	if ((tags != null) || (comment != null))
+	    databuf.append("\n$$$\n");
+    }
+    
+    
+    /**
+     * Get the number of columns in a row that need to be printed, when not padding to even width
+     * 
+     * @param   row      The cells in the row
+     * @param   metarow  The metacells in the row
+     * @return           The number of columns before the trailing blank cells
+     */
+    private static int rowEnding(Pony.Row row, Pony.Meta[][] metarow)
+    {
+	int cell = row.lastNonBlank(), meta = row.width - 1;
+	for (;;)
+	{   while ((meta >= 0) && (metarow[meta] == null))
+		meta--;
+	    int x = Math.max(cell, meta);
+	    if ((x < 0) || Viewport.isSolid(row.isBlank(x), metarow[x]))
+		return x + 1;
+	    if (cell == x)
+		cell = row.previousNonBlank(x - 1);
+	    if (meta == x)
+		meta--;
+	}
+    }
+    
+    
+    /**
+     * Create the output for a row
+     * 
+     * @param  databuf  The output buffer
+     * @param  colours  The colour palette
+     * @param  plains   Plain formats, see {@link PonysaySubmodule#getPlains()}
+     * @param  row      The cells in the row, {@code null} if the row is blank
+     * @param  offset   The column in {@code row} that is printed first, may be negative
+     * @param  width    The number of columns in the row
+     * @param  link     The column with a balloon link that is not in {@code row}, -1 if none
+     * @param  metarow  The metacells in the row
+     * @param  ending   The number of columns to print
+     */
+    private void encodeRow(StringBuilder databuf, int[] colours, boolean[][] plains, Pony.Row row, int offset, int width, int link, Pony.Meta[][] metarow, int ending)
+    {
+	boolean[] format = new boolean[9];
+	int background = Colour.NONE, foreground = Colour.NONE;
+	boolean[] PLAIN = plains[0];
+	boolean[] P1PLAIN = plains[1];
+	boolean[] P2PLAIN = plains[2];
+	boolean[] cellformat = new boolean[9];
+	
+	int character = Pony.Cell.PIXELS, runend = -1;
+	int upper = Colour.NONE, lower = Colour.NONE;
+	
+	int balloonend = -1;
+	for (int x = 0, w = width; x <= w; x++)
+	{   Pony.Meta[] metacell = metarow[x];
+	    if (metacell != null)
+		for (int z = 0, d = metacell.length; z < d; z++)
+		{   Pony.Meta meta = metacell[z];
+		    if ((meta != null) && ((x >= this.left) || (meta instanceof Pony.Store)))
+		    {   Class<?> metaclass = meta.getClass();
+			if (metaclass == Pony.Store.class)
+			    databuf.append("$" + (((Pony.Store)meta).name + "=" + ((Pony.Store)meta).value).replace("$", "\033$") + "$");
+			else if (metaclass == Pony.Recall.class)
+			{   Pony.Recall recall = (Pony.Recall)meta;
+			    int back = Colour.alpha(recall.backgroundColour) < 112 ? Colour.NONE : recall.backgroundColour;
+			    int fore = Colour.alpha(recall.foregroundColour) < 112 ? Colour.NONE : recall.foregroundColour;
+			    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = back, foreground = fore, recall.format));
+			    databuf.append("$" + recall.name.replace("$", "\033$") + "$");
+			}
+			else if (metaclass == Pony.Combining.class)
+			{   Pony.Combining combining = (Pony.Combining)meta;
+			    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = combining.backgroundColour, foreground = combining.foregroundColour, combining.format));
+			    databuf.append(combining.character);
+			}
+			else if (metaclass == Pony.Balloon.class)
+			{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = Colour.NONE, PLAIN));
+			    Pony.Balloon balloon = (Pony.Balloon)meta;
+			    if (balloon.left != null)
+			    {   int justification = balloon.minWidth != null ? balloon.justification & (Pony.Balloon.LEFT | Pony.Balloon.RIGHT) : Pony.Balloon.NONE;
+				switch (justification)
+				{	case Pony.Balloon.NONE:
+					char[] spaces = new char[balloon.left.intValue()];
+					Arrays.fill(spaces, ' ');
+					databuf.append(new String(spaces));
+					databuf.append("$balloon" + balloon.left.intValue());
+					break;
+				    case Pony.Balloon.LEFT:
+					databuf.append("$balloon" + balloon.left.intValue() + "l");
+					databuf.append(balloon.left.intValue() + balloon.minWidth.intValue() - 1);
+					break;
+				    case Pony.Balloon.RIGHT:
+					databuf.append("$balloon" + balloon.left.intValue() + "r");
+					databuf.append(balloon.left.intValue() + balloon.minWidth.intValue() - 1);
+					break;
+				    default:
+					databuf.append("$balloon" + balloon.left.intValue() + "c");
+					databuf.append(balloon.left.intValue() + balloon.minWidth.intValue() - 1);
+					break;
+			    }   }
+			    else if (balloon.minWidth != null)
+				databuf.append("$balloon" + balloon.minWidth.toString());
+			    else
+				databuf.append("$balloon");
+			    // KEYWORD: not supported in ponysay: balloon.top != null
+			    if (balloon.minHeight != null)
+				databuf.append("," + balloon.minHeight.toString());
+			    // KEYWORD: not supported in ponysay: balloon.maxWidth != null
+			    // KEYWORD: not supported in ponysay: balloon.maxHeight != null
+			    databuf.append("$");
+			    balloonend = 0;
+		}	}   }
+	    if ((x != w) && (x >= this.left) && (x < ending))
+	    {   int px = x + offset;
+		if (x == link)
+		{   character = Pony.Cell.NNW_SSE;
+		    upper = lower = Colour.NONE;
+		    Arrays.fill(cellformat, false);
+		    runend = -1;
+		}
+		else if ((row == null) || (px < 0) || (px >= row.width) || (px >= runend))
+		{   int run = -1;
+		    runend = -1;
+		    if ((row != null) && (0 <= px) && (px < row.width))
+		    {   run = row.runOf(px);
+			runend = row.runEnd(run);
+		    }
+		    character = Pony.Cell.PIXELS;
+		    upper = lower = Colour.NONE;
+		    if ((run >= 0) && ((row.flags[run] & Pony.Row.CELL) != 0))
+		    {   int flags = row.flags[run];
+			character = row.characters[run];
+			row.getFormat(px, cellformat);
+			if ((flags & Pony.Row.UPPER) != 0)
+			    upper = row.upper[run];
+			if ((flags & Pony.Row.LOWER) != 0)
+			    lower = row.lower[run];
+		    }
+		    else
+		    {   System.arraycopy(PLAIN, 0, cellformat, 0, 9);
+			cellformat[0] = false;
+		    }
+		}
+		if (character >= 0)
+		    if (balloonend < 0)
+		    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = lower, foreground = upper, cellformat));
+			databuf.append(Common.utf32to16(character));
+		    }
+		    else if (((character == ' ') || (character == ' ')) && (lower == Colour.NONE))
+			balloonend++;
+		    else
+		    {   if (balloonend >= 0)
+			{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = this.spacesave ? foreground : Colour.NONE, PLAIN));
+			    for (int i = 0; i < balloonend; i++)
+				databuf.append(' ');
+			    balloonend = -1;
+			}
+			databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = lower, foreground = upper, cellformat));
+			databuf.append(Common.utf32to16(character));
+		    }
+		else if (character == Pony.Cell.NNW_SSE)
+		{   if (balloonend >= 0)
+		    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = Colour.NONE, PLAIN));
+			for (int i = 0; i < balloonend; i++)
+			    databuf.append(' ');
+			balloonend = -1;
+		    }
+		    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = Colour.NONE, PLAIN));
+		    databuf.append("$\\$");
+		}
+		else if (character == Pony.Cell.NNE_SSW)
+		{   if (balloonend >= 0)
+		    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = Colour.NONE, PLAIN));
+			for (int i = 0; i < balloonend; i++)
+			    databuf.append(' ');
+			balloonend = -1;
+		    }
+		    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = Colour.NONE, PLAIN));
+		    databuf.append("$/$");
+		}
+		else if (character == Pony.Cell.PIXELS)
+		    if (lower == Colour.NONE)
+			if (upper == Colour.NONE)
+			{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = this.spacesave ? foreground : Colour.NONE, PLAIN));
+			    if (balloonend >= 0)
+				balloonend++;
+			    else
+				databuf.append(' ');
+			}
+			else
+			{   if (balloonend >= 0)
+			    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = this.spacesave ? foreground : Colour.NONE, PLAIN));
+				for (int i = 0; i < balloonend; i++)
+				    databuf.append(' ');
+				balloonend = -1;
+			    }
+			    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = upper, P1PLAIN));
+			    databuf.append('▀');
+			}
+		    else
+			if (upper == Colour.NONE)
+			{   if (balloonend >= 0)
+			    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = this.spacesave ? foreground : Colour.NONE, PLAIN));
+				for (int i = 0; i < balloonend; i++)
+				    databuf.append(' ');
+				balloonend = -1;
+			    }
+			    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = lower, P1PLAIN));
+			    databuf.append('▄');
+			}
+			else if (upper == lower)
+			    if (this.zebra)
+			    {   if (balloonend >= 0)
+				{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = this.spacesave ? foreground : Colour.NONE, PLAIN));
+				    for (int i = 0; i < balloonend; i++)
+					databuf.append(' ');
+				    balloonend = -1;
+				}
+				databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = lower, foreground = lower, P2PLAIN));
+				databuf.append('▄');
+			    }
+			    else if (this.fullblocks)
+			    {   if (balloonend >= 0)
+				{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = this.spacesave ? foreground : Colour.NONE, PLAIN));
+				    for (int i = 0; i < balloonend; i++)
+					databuf.append(' ');
+				    balloonend = -1;
+				}
+				databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = this.spacesave ? background : lower, foreground = lower, P1PLAIN));
+				databuf.append('█');
+			    }
+			    else
+			    {   if (balloonend >= 0)
+				{   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = this.spacesave ? foreground : Colour.NONE, PLAIN));
+				    for (int i = 0; i < balloonend; i++)
+					databuf.append(' ');
+				    balloonend = -1;
+				}
+				databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = lower, foreground = this.spacesave ? foreground : lower, PLAIN));
+				databuf.append(' ');
+			    }
+			else
+			{	if (balloonend >= 0)
+			    {   databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = Colour.NONE, foreground = this.spacesave ? foreground : Colour.NONE, PLAIN));
+				for (int i = 0; i < balloonend; i++)
+				    databuf.append(' ');
+				balloonend = -1;
+			    }
+			    databuf.append(this.submodule.applyColour(colours, background, foreground, format, background = upper, foreground = lower, P2PLAIN));
+			    databuf.append('▄');  //TODO (this.colourful && ¿can get better colour?) → flip
+			}
+	    }
+	}
+	databuf.append(this.submodule.applyColour(colours, background, foreground, format, Colour.NONE, Colour.NONE, format));
+	databuf.append("\033[00m\n");
+	Stats.count(Stats.SGR_SEQUENCES, 1);
+    }
+    
+    
+    /**
+     * Get a copy of the default 256 colour palette
+     * 
+     * @return  The default palette
+     */
+    private static synchronized int[] getDefaultColours()
+    {
+	if (defaultColours == null)
+	{   defaultColours = new int[256];
+	    for (int i = 0; i < 256; i++)
+		defaultColours[i] = (new Colour(i)).toARGB();
+	}
+	int[] rc = new int[256];
+	System.arraycopy(defaultColours, 0, rc, 0, 256);
+	return rc;
     }
     
     
@@ -1069,5 +1208,168 @@ public class Ponysay
 	/* version 3.0 */      return VERSION_HORIZONTAL_JUSTIFICATION;
     }
     
+    
+    
+    /**
+     * Exports a pony one row at the time
+     */
+    private class RowEncoder implements PonyModule.RowSink
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  out    The output
+	 * @param  close  Whether the output should be closed at the end
+	 * @param  width  The width of the pony, -1 if unknown
+	 * 
+	 * @throws  IOException  On I/O error
+	 */
+	public RowEncoder(OutputStream out, boolean close, int width) throws IOException
+	{
+	    this.out = out;
+	    this.close = close;
+	    this.buffered = new BufferedOutputStream(out);
+	    this.width = width;
+	    this.colours = getDefaultColours();
+	    Ponysay.this.usingSubmodule();
+	    this.resetPalette = Ponysay.this.submodule.initExport(this.colours);
+	    this.plains = Ponysay.this.submodule.getPlains();
+	}
+	
+	
+	
+	/**
+	 * The output
+	 */
+	private final OutputStream out;
+	
+	/**
+	 * Whether the output should be closed at the end
+	 */
+	private final boolean close;
+	
+	/**
+	 * The output, buffered
+	 */
+	private final OutputStream buffered;
+	
+	/**
+	 * The width of the pony, -1 if unknown
+	 */
+	private final int width;
+	
+	/**
+	 * The colour palette
+	 */
+	private final int[] colours;
+	
+	/**
+	 * String used to reset the colour palette, may be {@code null}
+	 */
+	private final String resetPalette;
+	
+	/**
+	 * Plain formats
+	 */
+	private final boolean[][] plains;
+	
+	/**
+	 * Buffer for the current row
+	 */
+	private final StringBuilder databuf = new StringBuilder();
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void begin(String comment, String[][] tags) throws IOException
+	{
+	    encodeHeader(this.databuf, comment, tags);
+	    this.flush();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void row(Pony.Row row, Pony.Meta[][] metarow) throws IOException
+	{
+	    if (row.width < this.width)
+	    {   row = row.resize(0, this.width);
+		metarow = Arrays.copyOf(metarow, this.width + 1);
+	    }
+	    Ponysay.this.prepareRow(row, metarow, this.plains[0]);
+	    int ending = Ponysay.this.even ? row.width : rowEnding(row, metarow);
+	    Ponysay.this.encodeRow(this.databuf, this.colours, this.plains, row, 0, row.width, -1, metarow, ending);
+	    this.flush();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void end() throws IOException
+	{
+	    if (this.resetPalette != null)
+		this.databuf.append(this.resetPalette);
+	    Ponysay.this.submodule.recordStats();
+	    this.flush();
+	    this.buffered.flush();
+	    if (this.close)
+		this.out.close();
+	}
+	
+	/**
+	 * Write and clear the buffer
+	 * 
+	 * @throws  IOException  On I/O error
+	 */
+	private void flush() throws IOException
+	{
+	    byte[] data = this.databuf.toString().getBytes("UTF-8");
+	    Stats.count(Stats.OUTPUT_BYTES, data.length);
+	    this.buffered.write(data);
+	    this.databuf.setLength(0);
+	}
+	
+    }
+    
+    
+    /**
+     * The metadata of a pony, without its dimensions, see {@link Ponysay#importHeader()}
+     */
+    public static class Header
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  comment  The comment, {@code null} if none
+	 * @param  tags     The tags, {@code null} if none
+	 * @param  length   The number of bytes in the metadata block, including the {@code $$$} lines, 0 if none
+	 */
+	public Header(String comment, String[][] tags, int length)
+	{
+	    this.comment = comment;
+	    this.tags = tags;
+	    this.length = length;
+	}
+	
+	
+	
+	/**
+	 * The comment, {@code null} if none
+	 */
+	public String comment;
+	
+	/**
+	 * The tags, {@code null} if none, each tag is {@code {name, value}}
+	 */
+	public String[][] tags;
+	
+	/**
+	 * The number of bytes in the metadata block, including the {@code $$$} lines, 0 if none
+	 */
+	public int length;
+	
+    }
+    
 }
-
@@ -18,7 +18,6 @@
  */
 package se.kth.maandree.utilsay;
 
-import java.awt.*;
 import java.util.*;
 
 
@@ -41,7 +40,7 @@ public abstract class PonysaySubmodule
      * 
      * @param  colours  The supermodule's colour palette
      */
-    public abstract void initImport(Color[] colours);
+    public abstract void initImport(int[] colours);
     
     /**
      * Initialise the export and return a string used to reset the colour palette
@@ -49,59 +48,153 @@ public abstract class PonysaySubmodule
      * @param   colours  The supermodule's colour palette
      * @return           String to print to reset the colour palette
      */
-    public abstract String initExport(Color[] colours);
+    public abstract String initExport(int[] colours);
     
     /**
      * Get ANSI colour sequence to append to the output
      * 
-     * @param  palette        The current colour palette
-     * @param  oldBackground  The current background colour
-     * @param  oldForeground  The current foreground colour
+     * @param  palette        The current colour palette, in ARGB
+     * @param  oldBackground  The current background colour, in ARGB, {@link Colour#NONE} for default
+     * @param  oldForeground  The current foreground colour, in ARGB, {@link Colour#NONE} for default
      * @param  oldFormat      The current text format
-     * @param  newBackground  The new background colour
-     * @param  newForeground  The new foreground colour
+     * @param  newBackground  The new background colour, in ARGB, {@link Colour#NONE} for default
+     * @param  newForeground  The new foreground colour, in ARGB, {@link Colour#NONE} for default
      * @param  newFormat      The new text format
      */
-    public abstract String applyColour(Color[] palette, Color oldBackground, Color oldForeground, boolean[] oldFormat, Color newBackground, Color newForeground, boolean[] newFormat);
+    public abstract String applyColour(int[] palette, int oldBackground, int oldForeground, boolean[] oldFormat, int newBackground, int newForeground, boolean[] newFormat);
     
     /**
-     * Parse escape sequences
+     * Get the SGR parameter that resets the foreground colour, for {@link EscapeParser}
      * 
-     * @param   c           The current character in the parsing
-     * @param   background  The current background colour
-     * @param   foreground  The current foreground colour
-     * @param   format      The current format, may be updated in-place
-     * @param   colours     The current palette, may be updated in-place
-     * @return              The background colour, the foreground colour and state: {@code {background, foreground, Boolean.TRUE|Boolean.FALSE}},
-     *                      wheere the state is true as along as the escape parsing has not completed
+     * @return  The SGR parameter
      */
-    public abstract Object[] parseEscape(int c, Color background, Color foreground, boolean[] format, Color[] colours);
+    protected int getDefaultForegroundSGR()
+    {
+	return 39;
+    }
+    
+    /**
+     * Get the SGR parameter that resets the background colour, for {@link EscapeParser}
+     * 
+     * @return  The SGR parameter
+     */
+    protected int getDefaultBackgroundSGR()
+    {
+	return 49;
+    }
+    
+    /**
+     * Get the colour the foreground colour is reset to when a pony is imported
+     * 
+     * @param   colours  The current palette
+     * @return           The index of the colour in the palette, -1 for default
+     */
+    protected int getDefaultForeground(int[] colours)
+    {
+	return -1;
+    }
+    
+    /**
+     * Get the colour the background colour is reset to when a pony is imported
+     * 
+     * @param   colours  The current palette
+     * @return           The colour, in ARGB, {@link Colour#NONE} for default
+     */
+    protected int getDefaultBackground(int[] colours)
+    {
+	return Colour.NONE;
+    }
+    
+    /**
+     * Apply a SGR parameter that {@link EscapeParser} does not know, when a pony is imported,
+     * by default the bright colours 90 to 97 and 100 to 107 are supported
+     * 
+     * @param  parser   The parser, its {@link EscapeParser#background} and {@link EscapeParser#foregroundIndex} may be updated
+     * @param  value    The SGR parameter
+     * @param  colours  The current palette
+     */
+    protected void parseSGR(EscapeParser parser, int value, int[] colours)
+    {
+	if ((90 <= value) && (value < 98))
+	    parser.background = colours[value - 90 + 8];
+	else if ((100 <= value) && (value < 108))
+	    parser.foregroundIndex = value - 100 + 8;
+    }
     
     
     
     /**
      * Colour CIELAB value cache
      */
-    private static ThreadLocal<HashMap<Color, double[]>> labMap = new ThreadLocal<HashMap<Color, double[]>>();
+    private static ThreadLocal<HashMap<Integer, double[]>> labMap = new ThreadLocal<HashMap<Integer, double[]>>();
+    
+    /**
+     * The number of colours {@link #labMap} may hold before it is cleared
+     */
+    private static final int LAB_MAP_LIMIT = 1 << 16;
     
     /**
      * Chroma weight using in {@link #labMap}
      */
     private static ThreadLocal<Double> labMapWeight = new ThreadLocal<Double>();
     
+    /**
+     * The number of colours matched since {@link #recordStats()} was last called
+     */
+    private long matches = 0;
+    
+    /**
+     * The time spent matching colours since {@link #recordStats()} was last called, in nanoseconds
+     */
+    private long matchTime = 0;
+    
     
     
     /**
      * Get the closest matching colour
      * 
-     * @param   colour        The colour to match
-     * @param   palette       The palette for which to match
+     * @param   colour        The colour to match, in ARGB
+     * @param   palette       The palette for which to match, in ARGB
+     * @param   paletteStart  The beginning of the usable part of the palette
+     * @param   paletteEnd    The exclusive end of the usable part of the palette
+     * @param   chromaWeight  The chroma weight, negative for sRGB distance
+     * @return                The index of the closest colour in the palette
+     */
+    protected int matchColour(int colour, int[] palette, int paletteStart, int paletteEnd, double chromaWeight)
+    {
+	if (Stats.enabled == false)
+	    return match(colour, palette, paletteStart, paletteEnd, chromaWeight);
+	long time = System.nanoTime();
+	int rc = match(colour, palette, paletteStart, paletteEnd, chromaWeight);
+	this.matchTime += System.nanoTime() - time;
+	this.matches++;
+	return rc;
+    }
+    
+    
+    /**
+     * Add the colour matches since this method was last called to the statistics,
+     * matches are tallied here rather than recorded one by one because they are many
+     */
+    public void recordStats()
+    {
+	Stats.count(Stats.COLOUR_MATCHES, this.matches);
+	Stats.time(Stats.MATCH, this.matchTime);
+	this.matches = this.matchTime = 0;
+    }
+    
+    
+    /**
+     * Get the closest matching colour, without recording statistics
+     * 
+     * @param   colour        The colour to match, in ARGB
+     * @param   palette       The palette for which to match, in ARGB
      * @param   paletteStart  The beginning of the usable part of the palette
      * @param   paletteEnd    The exclusive end of the usable part of the palette
      * @param   chromaWeight  The chroma weight, negative for sRGB distance
      * @return                The index of the closest colour in the palette
      */
-    protected static int matchColour(Color colour, Color[] palette, int paletteStart, int paletteEnd, double chromaWeight)
+    private static int match(int colour, int[] palette, int paletteStart, int paletteEnd, double chromaWeight)
     {
 	if (chromaWeight < 0.0)
 	{
@@ -109,9 +202,9 @@ public abstract class PonysaySubmodule
 	    int bestD = 4 * 256 * 256;
 	    for (int i = paletteStart; i < paletteEnd; i++)
 	    {
-		int ðr = colour.getRed()   - palette[i].getRed();
-		int ðg = colour.getGreen() - palette[i].getGreen();
-		int ðb = colour.getBlue()  - palette[i].getBlue();
+		int ðr = Colour.red(colour)   - Colour.red(palette[i]);
+		int ðg = Colour.green(colour) - Colour.green(palette[i]);
+		int ðb = Colour.blue(colour)  - Colour.blue(palette[i]);
 		
 		int ð = ðr*ðr + ðg*ðg + ðb*ðb;
 		if (bestD > ð)
@@ -123,25 +216,28 @@ public abstract class PonysaySubmodule
 	}
 	
 	Double _chroma = labMapWeight.get();
-	HashMap<Color, double[]> _labMap = ((_chroma == null) || (_chroma.doubleValue() != chromaWeight)) ? null : labMap.get();
-	if (_labMap == null)
-	{   labMap.set(_labMap = new HashMap<Color, double[]>());
+	HashMap<Integer, double[]> _labMap = ((_chroma == null) || (_chroma.doubleValue() != chromaWeight)) ? null : labMap.get();
+	if ((_labMap == null) || (_labMap.size() > LAB_MAP_LIMIT))
+	{   labMap.set(_labMap = new HashMap<Integer, double[]>());
 	    labMapWeight.set(new Double(chromaWeight));
 	}
 	
-	double[] lab = _labMap.get(colour);
-	/* if (lab == null) */ // FIXME Why does this not work!?
-	    _labMap.put(colour, lab = Colour.toLab(colour.getRed(), colour.getGreen(), colour.getBlue(), chromaWeight));
+	Integer key = Colour.box(colour);
+	double[] lab = _labMap.get(key);
+	if (lab == null)
+	    _labMap.put(key, lab = Colour.toLab(Colour.red(colour), Colour.green(colour), Colour.blue(colour), chromaWeight));
+	else
+	    Stats.count(Stats.CACHE_HITS, 1);
 	double L = lab[0], a = lab[1], b = lab[2];
 	
 	int bestI = -1;
 	double bestD = 0.0;
-	Color p;
+	Integer p;
 	for (int i = paletteStart; i < paletteEnd; i++)
 	{
-	    double[] tLab = _labMap.get(p = palette[i]);
-	    /* if (tLab == null) */ // FIXME Why does this not work!?
-		_labMap.put(colour, tLab = Colour.toLab(p.getRed(), p.getGreen(), p.getBlue(), chromaWeight));
+	    double[] tLab = _labMap.get(p = Colour.box(palette[i]));
+	    if (tLab == null)
+		_labMap.put(p, tLab = Colour.toLab(Colour.red(palette[i]), Colour.green(palette[i]), Colour.blue(palette[i]), chromaWeight));
 	    double ðL = L - tLab[0];
 	    double ða = a - tLab[1];
 	    double ðb = b - tLab[2];
@@ -155,5 +251,24 @@ public abstract class PonysaySubmodule
 	
 	return bestI;
     }
+    
+    
+    /**
+     * Count the SGR sequences in the output of {@link #applyColour(int[], int, int, boolean[], int, int, boolean[])}
+     * for {@code --stats}
+     * 
+     * @param   sgr  The output
+     * @return       {@code sgr}
+     */
+    protected static String countSGR(String sgr)
+    {
+	if (Stats.enabled)
+	{   int n = 0;
+	    for (int i = 0; (i = sgr.indexOf("\033[", i) + 1) > 0;)
+		n++;
+	    Stats.count(Stats.SGR_SEQUENCES, n);
+	}
+	return sgr;
+    }
 }
 
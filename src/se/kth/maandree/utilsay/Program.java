@@ -52,7 +52,9 @@ public class Program
 	{
             System.out.println("Copyright (C) 2012, 2013  Mattias Andrée <m@maandree.se>");
             System.out.println();
-            System.out.println("USAGE:  ponytool --import module [param*] {--export module [param*]}");
+            System.out.println("USAGE:  ponytool [--batch source [--threads n]] [--parallel y] [--stats y|file] [--cache y|cells] --import module [param*] {--export module [param*]}");
+            System.out.println("        ponytool --daemon port [--daemon-file file] [--cache y|cells]");
+            System.out.println("        ponytool --index directory [--index-file file] [--import module [param*]]");
 	    System.out.println();
             System.out.println();
             System.out.println("This program is free software: you can redistribute it and/or modify");
@@ -72,64 +74,32 @@ public class Program
 	    return;
 	}
 	
-	HashMap<String, String> params = new HashMap<String, String>();
-	String pname = null;
-	HashMap<String, String> inparams = null;
-	String intype = null;
-	final ArrayList<HashMap<String, String>> outparams = new ArrayList<HashMap<String, String>>();
-	final ArrayList<String> outtypes = new ArrayList<String>();
+	final Conversion conversion = Conversion.parse(args);
+	final String stats = conversion.globals.get("stats");
+	int status = 0;
 	
-	for (final String arg : args)
-	    if (arg.equals("--in") || arg.equals("--import") || arg.equals("--out") || arg.equals("--export"))
-	    {	if (pname != null)
-		    params.put(pname, "yes");
-		pname = arg.intern();
-	    }
-	    else if ((pname == "--in") || (pname == "--import"))
-	    {	inparams = params = new HashMap<String, String>();
-		intype = arg.toLowerCase().intern();
-		pname = null;
-	    }
-	    else if ((pname == "--out") || (pname == "--export"))
-	    {   outparams.add(params = new HashMap<String, String>());
-		outtypes.add(arg.toLowerCase().intern());
-		pname = null;
-	    }
-	    else if (arg.startsWith("--") || (pname == null))
-	    {	if (pname != null)
-		    params.put(pname, "yes");
-		int eq = arg.indexOf("=");
-		if (eq < 0)
-		    pname = arg.replace("-", "");
-		else
-		{   pname = null;
-		    params.put(arg.substring(0, eq).replace("-", ""), arg.substring(eq + 1));
-	    }   }
-	    else
-	    {	params.put(pname, arg);
-		pname = null;
-	    }
+	if (conversion.globals.containsKey("cache"))
+	    PonyCache.setLimit(PonyCache.parseLimit(conversion.globals.get("cache")));
 	
-	Pony pony = null;
-	if      (intype == "ponysay")  pony = (new Ponysay(inparams)).importPony();
-	else if (intype == "unisay")   pony = (new Unisay (inparams)).importPony();
-	else if (intype == "cowsay")   pony = (new Cowsay (inparams)).importPony();
-	else if (intype == "cat")      pony = (new Cat    (inparams)).importPony();
-	else if (intype == "image")    pony = (new Image  (inparams)).importPony();
-	else if (intype == "test")     pony = (new Test   (inparams)).importPony();
-	//TODO add warning
-	
-	for (int i = 0, n = outtypes.size(); i < n; i++)
-	{   final String outtype = outtypes.get(i);
-	    params = outparams.get(i);
-	    
-	    if      (outtype == "ponysay")  (new Ponysay(params)).exportPony(pony);
-	    else if (outtype == "unisay")   (new Unisay (params)).exportPony(pony);
-	    else if (outtype == "cowsay")   (new Cowsay (params)).exportPony(pony);
-	    else if (outtype == "cat")      (new Cat    (params)).exportPony(pony);
-	    else if (outtype == "image")    (new Image  (params)).exportPony(pony);
-	    else if (outtype == "test")     (new Test   (params)).exportPony(pony);
-	    //TODO add warning
+	if (conversion.globals.containsKey("daemon"))
+	{   String infofile = conversion.globals.get("daemonfile");
+	    Daemon.run(Math.max(0, Common.parseInteger(conversion.globals.get("daemon"), 0)), infofile == null ? Daemon.getInfoFile() : infofile);
+	    return;
 	}
+	
+	if (stats != null)
+	    Stats.start();
+	
+	if (conversion.globals.containsKey("batch"))
+	    status = Batch.run(conversion, conversion.globals.get("batch")) == 0 ? 0 : 1;
+	else if (conversion.globals.containsKey("index"))
+	    status = Index.run(conversion, conversion.globals.get("index"), conversion.globals.get("indexfile")) == 0 ? 0 : 1;
+	else
+	    conversion.run();
+	
+	if (stats != null)
+	    Stats.report(Stats.destination(stats));
+	if (status != 0)
+	    System.exit(status);
     }
 }
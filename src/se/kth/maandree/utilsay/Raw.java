@@ -19,7 +19,6 @@
 package se.kth.maandree.utilsay;
 
 import java.io.*;
-import java.awt.Color;
 import java.util.*;
 
 
@@ -96,24 +95,25 @@ public class Raw
 		out.write('}');
 	    }
 	    
-	    if (pony.matrix == null)
+	    if (pony.rows == null)
 		out.write('-');
 	    else
 	    {   out.write('{');
-		for (Pony.Cell[] row : pony.matrix)
+		for (Pony.Row row : pony.rows)
 		{   if (row == null)
 		    {   out.write('-');
 			continue;
 		    }
 		    out.write('[');
-		    for (Pony.Cell cell : row)
-		    {   if (cell == null)
+		    for (int x = 0; x < row.width; x++)
+		    {   Pony.Cell cell = row.get(x);
+			if (cell == null)
 			{   out.write('-');
 			    continue;
 			}
 			print(cell.character, out);
-			print(cell.upperColour, out);
-			print(cell.lowerColour, out);
+			printColour(cell.upperColour, out);
+			printColour(cell.lowerColour, out);
 			print(cell.format, out);
 		    }
 		    out.write(']');
@@ -121,15 +121,16 @@ public class Raw
 		out.write('}');
 	    }
 	    
-	    if (pony.metamatrix == null)
+	    if ((pony.metadata == null) || (pony.rows == null))
 		out.write('-');
 	    else
 	    {   out.write('{');
-		for (Pony.Meta[][] row : pony.metamatrix)
-		{   if (row == null)
+		for (int y = 0; y < pony.rows.length; y++)
+		{   if (pony.rows[y] == null)
 		    {   out.write('-');
 			continue;
 		    }
+		    Pony.Meta[][] row = pony.metadata.getRow(y, new Pony.Meta[pony.rows[y].width + 1][]);
 		    out.write('[');
 		    for (Pony.Meta[] cell : row)
 		    {   if (cell == null)
@@ -144,16 +145,16 @@ public class Raw
 			    {	out.write('T');
 				Pony.Combining m = (Pony.Combining)meta;
 				print(m.character, out);
-				print(m.foregroundColour, out);
-				print(m.backgroundColour, out);
+				printColour(m.foregroundColour, out);
+				printColour(m.backgroundColour, out);
 				print(m.format, out);
 			    }
 			    else if (meta instanceof Pony.Recall)
 			    {	out.write('$');
 				Pony.Recall m = (Pony.Recall)meta;
 				print(m.name, out);
-				print(m.foregroundColour, out);
-				print(m.backgroundColour, out);
+				printColour(m.foregroundColour, out);
+				printColour(m.backgroundColour, out);
 				print(m.format, out);
 			    }
 			    else if (meta instanceof Pony.Store)
@@ -273,16 +274,16 @@ public class Raw
 	}
     }
     
-    private void print(Color value, OutputStream out) throws IOException
+    private void printColour(int value, OutputStream out) throws IOException
     {
-	if (value == null)
+	if (value == Colour.NONE)
 	{   out.write('-');
 	    return;
 	}
-	print(value.getAlpha(), out);
-	print(value.getRed(), out);
-	print(value.getGreen(), out);
-	print(value.getBlue(), out);
+	print(Colour.alpha(value), out);
+	print(Colour.red(value), out);
+	print(Colour.green(value), out);
+	print(Colour.blue(value), out);
     }
     
 }
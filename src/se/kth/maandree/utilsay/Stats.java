@@ -0,0 +1,390 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Timing and counters for {@code --stats}
+ * 
+ * <p>
+ *   Nothing is recorded unless {@link #start()} has been called, so the
+ *   instrumented code only pays for a check of {@link #enabled}.
+ * </p>
+ * <p>
+ *   {@link #DECODE}, {@link #MARGINS}, {@link #MATCH} and {@link #IMAGEIO} are
+ *   parts of the other phases, their time is also included in the phase that
+ *   they are performed in. Allocations are not measured for {@link #MATCH},
+ *   it is timed with {@link #time(int, long)} because it is performed once per
+ *   colour rather than once per pony.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class Stats
+{
+    /**
+     * Non-constructor
+     */
+    private Stats()
+    {
+	assert false : "This class [Stats] is not meant to be instansiated.";
+    }
+    
+    
+    
+    /**
+     * Phase: reading input files in batches
+     */
+    public static final int READ = 0;
+    
+    /**
+     * Phase: importing, including decoding
+     */
+    public static final int IMPORT = 1;
+    
+    /**
+     * Phase: changing margins and inserting balloons
+     */
+    public static final int PREPARE = 2;
+    
+    /**
+     * Phase: creating the output
+     */
+    public static final int ENCODE = 3;
+    
+    /**
+     * Phase: writing the output
+     */
+    public static final int WRITE = 4;
+    
+    /**
+     * Phase: importing and exporting one row at the time
+     */
+    public static final int STREAM = 5;
+    
+    /**
+     * Part of a phase: decoding UTF-8 input
+     */
+    public static final int DECODE = 6;
+    
+    /**
+     * Part of a phase: changing margins
+     */
+    public static final int MARGINS = 7;
+    
+    /**
+     * Part of a phase: matching colours against a palette
+     */
+    public static final int MATCH = 8;
+    
+    /**
+     * Part of a phase: encoding images with {@link javax.imageio.ImageIO}
+     */
+    public static final int IMAGEIO = 9;
+    
+    /**
+     * The names of the phases
+     */
+    private static final String[] PHASES = { "read", "import", "prepare", "encode", "write", "stream",
+                                             "decode", "margins", "match", "imageio" };
+    
+    
+    /**
+     * Counter: imported cells
+     */
+    public static final int CELLS = 0;
+    
+    /**
+     * Counter: imported metadata entries
+     */
+    public static final int METAS = 1;
+    
+    /**
+     * Counter: colours matched against a palette
+     */
+    public static final int COLOUR_MATCHES = 2;
+    
+    /**
+     * Counter: colours matched against a palette in CIELAB whose conversion was
+     * found in the cache, at most one per entry in {@link #COLOUR_MATCHES}
+     */
+    public static final int CACHE_HITS = 3;
+    
+    /**
+     * Counter: SGR escape sequences in the output
+     */
+    public static final int SGR_SEQUENCES = 4;
+    
+    /**
+     * Counter: bytes in the output
+     */
+    public static final int OUTPUT_BYTES = 5;
+    
+    /**
+     * Counter: ponies copied from the pony cache, see {@link PonyCache}
+     */
+    public static final int PONY_CACHE_HITS = 6;
+    
+    /**
+     * Counter: escape sequences in ponysay input
+     */
+    public static final int ESCAPE_SEQUENCES = 7;
+    
+    /**
+     * The names of the counters
+     */
+    private static final String[] COUNTERS = { "cells", "metas", "colour_matches", "cache_hits", "sgr_sequences", "output_bytes",
+                                               "pony_cache_hits", "escape_sequences" };
+    
+    
+    
+    /**
+     * Whether statistics are being recorded
+     */
+    public static volatile boolean enabled = false;
+    
+    /**
+     * Wall time spent in each phase, in nanoseconds
+     */
+    private static final AtomicLongArray times = new AtomicLongArray(PHASES.length);
+    
+    /**
+     * Bytes allocated in each phase
+     */
+    private static final AtomicLongArray allocations = new AtomicLongArray(PHASES.length);
+    
+    /**
+     * The counters
+     */
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+    
+    
+    
+    /**
+     * Reset all statistics and start recording
+     */
+    public static void start()
+    {
+	for (int i = 0; i < PHASES.length; i++)
+	{   times.set(i, 0);
+	    allocations.set(i, 0);
+	}
+	for (int i = 0; i < COUNTERS.length; i++)
+	    counters.set(i, 0);
+	enabled = true;
+    }
+    
+    
+    /**
+     * Increase a counter, if recording
+     * 
+     * @param  counter  The counter
+     * @param  value    The value to add
+     */
+    public static void count(int counter, long value)
+    {
+	if (enabled)
+	    counters.addAndGet(counter, value);
+    }
+    
+    
+    /**
+     * Count the cells and metadata entries in a pony, if recording
+     * 
+     * @param  pony  The pony, may be {@code null}
+     */
+    public static void count(Pony pony)
+    {
+	if ((enabled == false) || (pony == null))
+	    return;
+	long cells = 0, metas = 0;
+	for (final Pony.Row row : pony.rows)
+	    for (int i = 0, n = row.runs(); i < n; i++)
+		if ((row.flags[i] & Pony.Row.CELL) != 0)
+		    cells += row.runEnd(i) - row.runStart(i);
+	for (int i = 0, n = pony.metadata.size(); i < n; i++)
+	    for (final Pony.Meta meta : pony.metadata.valueAt(i))
+		if (meta != null)
+		    metas++;
+	counters.addAndGet(CELLS, cells);
+	counters.addAndGet(METAS, metas);
+    }
+    
+    
+    /**
+     * Count the cells and metadata entries in a row, if recording
+     * 
+     * @param  row      The cells in the row
+     * @param  metarow  The metacells in the row
+     */
+    public static void count(Pony.Row row, Pony.Meta[][] metarow)
+    {
+	if (enabled == false)
+	    return;
+	long cells = 0, metas = 0;
+	for (int i = 0, n = row.runs(); i < n; i++)
+	    if ((row.flags[i] & Pony.Row.CELL) != 0)
+		cells += row.runEnd(i) - row.runStart(i);
+	for (final Pony.Meta[] metacell : metarow)
+	    if (metacell != null)
+		for (final Pony.Meta meta : metacell)
+		    if (meta != null)
+			metas++;
+	counters.addAndGet(CELLS, cells);
+	counters.addAndGet(METAS, metas);
+    }
+    
+    
+    /**
+     * Start measuring a phase in the current thread
+     * 
+     * @return  Token to pass to {@link #end(int, long[])}, {@code null} if not recording
+     */
+    public static long[] begin()
+    {
+	if (enabled == false)
+	    return null;
+	return new long[] { System.nanoTime(), allocated() };
+    }
+    
+    
+    /**
+     * Stop measuring a phase in the current thread
+     * 
+     * @param  phase  The phase
+     * @param  token  The value returned by {@link #begin()}
+     */
+    public static void end(int phase, long[] token)
+    {
+	if (token == null)
+	    return;
+	times.addAndGet(phase, System.nanoTime() - token[0]);
+	long allocated = allocated();
+	if ((allocated >= 0) && (token[1] >= 0))
+	    allocations.addAndGet(phase, allocated - token[1]);
+    }
+    
+    
+    /**
+     * Add time to a phase, if recording, without measuring allocations
+     * 
+     * @param  phase  The phase
+     * @param  time   The time, in nanoseconds
+     */
+    public static void time(int phase, long time)
+    {
+	if (enabled)
+	    times.addAndGet(phase, time);
+    }
+    
+    
+    /**
+     * Get the number of bytes allocated by the current thread
+     * 
+     * @return  The number of bytes allocated by the current thread, -1 if not supported
+     */
+    private static long allocated()
+    {
+	try
+	{   ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+	    if (bean instanceof com.sun.management.ThreadMXBean)
+		return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	catch (final Throwable err)
+	{   // Not supported by this JVM
+	}
+	return -1;
+    }
+    
+    
+    /**
+     * Get the file to write the statistics to
+     * 
+     * @param   value  The value of {@code --stats}
+     * @return         The file, {@code null} for stderr
+     */
+    public static String destination(String value)
+    {
+	return value.toLowerCase().startsWith("y") ? null : value;
+    }
+    
+    
+    /**
+     * Stop recording and print the statistics
+     * 
+     * @param   file  The file to write the statistics to, as JSON, {@code null} to print them to stderr
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public static void report(String file) throws IOException
+    {
+	report(file, System.err);
+    }
+    
+    
+    /**
+     * Stop recording and print the statistics
+     * 
+     * @param   file    The file to write the statistics to, as JSON, {@code null} to print them to {@code stderr}
+     * @param   stderr  The stream to print the statistics to if no file is specified
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public static void report(String file, PrintStream stderr) throws IOException
+    {
+	enabled = false;
+	
+	if (file == null)
+	{   for (int i = 0; i < PHASES.length; i++)
+		if (times.get(i) != 0)
+		    stderr.println("util-say: stats: " + PHASES[i] + ": " + String.format("%.3f", times.get(i) / 1000000.) + " ms, "
+				       + allocations.get(i) + " bytes allocated");
+	    for (int i = 0; i < COUNTERS.length; i++)
+		stderr.println("util-say: stats: " + COUNTERS[i].replace('_', ' ') + ": " + counters.get(i));
+	    return;
+	}
+	
+	StringBuilder json = new StringBuilder();
+	json.append("{\n  \"phases\": {");
+	for (int i = 0; i < PHASES.length; i++)
+	{   json.append(i == 0 ? "\n" : ",\n");
+	    json.append("    \"" + PHASES[i] + "\": { \"time_ns\": " + times.get(i) + ", \"allocated_bytes\": " + allocations.get(i) + " }");
+	}
+	json.append("\n  },\n  \"counters\": {");
+	for (int i = 0; i < COUNTERS.length; i++)
+	{   json.append(i == 0 ? "\n" : ",\n");
+	    json.append("    \"" + COUNTERS[i] + "\": " + counters.get(i));
+	}
+	json.append("\n  }\n}\n");
+	
+	OutputStream out = new FileOutputStream(file);
+	try
+	{   out.write(json.toString().getBytes("UTF-8"));
+	    out.flush();
+	}
+	finally
+	{   out.close();
+	}
+    }
+    
+}
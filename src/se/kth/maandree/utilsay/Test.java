@@ -19,16 +19,16 @@
 package se.kth.maandree.utilsay;
 
 import java.io.*;
-import java.awt.Color;
 import java.util.*;
 
 
 /**
- * Test module
+ * Test module, imports a fixed checkerboard, or a pony generated from
+ * parameters for load testing
  * 
  * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
  */
-public class Test
+public class Test extends PonyModule
 {
     /**
      * Constructor
@@ -37,11 +37,76 @@ public class Test
      */
     public Test(HashMap<String, String> flags)
     {
-	// Do nothing
+	boolean generate = false;
+	for (final String flag : GENERATOR_FLAGS)
+	    generate |= flags.containsKey(flag);
+	this.generate = generate;
+	
+	this.height  = (flags.containsKey("height")  == false) ? 10  : Math.max(0, Common.parseInteger(flags.get("height"), 10));
+	this.width   = (flags.containsKey("width")   == false) ? 20  : Math.max(0, Common.parseInteger(flags.get("width"), 20));
+	this.colours = (flags.containsKey("colours") == false) ? 4   : Math.min(1 << 24, Math.max(1, Common.parseInteger(flags.get("colours"), 4)));
+	this.runs    = (flags.containsKey("runs")    == false) ? 4   : Math.max(1, Common.parseInteger(flags.get("runs"), 4));
+	this.text    = (flags.containsKey("text")    == false) ? 0.0 : Math.min(1.0, Math.max(0.0, Common.parseDouble(flags.get("text"), 0.5)));
+	this.meta    = (flags.containsKey("meta")    == false) ? 0.0 : Math.min(1.0, Math.max(0.0, Common.parseDouble(flags.get("meta"), 0.05)));
+	this.seed    = (flags.containsKey("seed")    == false) ? 0   : Common.parseInteger(flags.get("seed"), 0);
     }
     
     
     
+    /**
+     * The flags that makes the module generate a pony rather than the checkerboard
+     */
+    private static final String[] GENERATOR_FLAGS = { "height", "width", "colours", "runs", "text", "meta", "seed" };
+    
+    /**
+     * The characters used in text cells
+     */
+    private static final String TEXT = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.,:;!?()<>/\\|-_=+*#%&@";
+    
+    
+    
+    /**
+     * Whether to generate a pony rather than the checkerboard
+     */
+    protected boolean generate;
+    
+    /**
+     * Input option: the height of the generated pony
+     */
+    protected int height;
+    
+    /**
+     * Input option: the width of the generated pony
+     */
+    protected int width;
+    
+    /**
+     * Input option: the number of distinct colours in the generated pony
+     */
+    protected int colours;
+    
+    /**
+     * Input option: the average number of cells in a row that share colours and kind
+     */
+    protected int runs;
+    
+    /**
+     * Input option: the share of runs that are text rather than pixels
+     */
+    protected double text;
+    
+    /**
+     * Input option: the probability that a position has metadata
+     */
+    protected double meta;
+    
+    /**
+     * Input option: the seed for the random number generator
+     */
+    protected long seed;
+    
+    
+    
     /**
      * Import a test pony
      * 
@@ -49,8 +114,34 @@ public class Test
      * 
      * @throws  IOException  On I/O error
      */
+    @Override
     public Pony importPony() throws IOException
     {
+	if (this.generate)
+	{   final Pony pony = new Pony(this.height, this.width, "Generated pony", new String[][] {{"PONY", "test"}, {"SEED", Long.toString(this.seed)}});
+	    this.importRows(new RowSink()
+		{
+		    private int y = 0;
+		    
+		    public void begin(String comment, String[][] tags)
+		    {
+			// Do nothing
+		    }
+		    
+		    public void row(Pony.Row row, Pony.Meta[][] metarow)
+		    {
+			pony.rows[this.y] = row;
+			pony.metadata.setRow(this.y++, metarow);
+		    }
+		    
+		    public void end()
+		    {
+			// Do nothing
+		    }
+		});
+	    return pony;
+	}
+	
 	int Y = 10, X = 20;
 	Pony pony = new Pony(Y, X, "Test pony", new String[][] {{"PONY", "test"}});
 	/**/
@@ -58,27 +149,168 @@ public class Test
 	    for (int x = 0; x < X; x++)
 		if ((y < 5) ^ (x < 10))
 		    if ((x & 2) == 2)
-			pony.matrix[y][x] = new Pony.Cell(Pony.Cell.PIXELS, Color.BLUE, Color.RED, null);
+			pony.rows[y].set(x, Pony.Cell.PIXELS, Colour.rgb(0, 0, 255), Colour.rgb(255, 0, 0), null);
 		    else
-			pony.matrix[y][x] = new Pony.Cell(Pony.Cell.PIXELS, Color.RED, Color.BLUE, null);
+			pony.rows[y].set(x, Pony.Cell.PIXELS, Colour.rgb(255, 0, 0), Colour.rgb(0, 0, 255), null);
 		else
 		    if ((x & 2) == 2)
-			pony.matrix[y][x] = new Pony.Cell(Pony.Cell.PIXELS, Color.GREEN, Color.YELLOW, null);
+			pony.rows[y].set(x, Pony.Cell.PIXELS, Colour.rgb(0, 255, 0), Colour.rgb(255, 255, 0), null);
 		    else
-			pony.matrix[y][x] = new Pony.Cell(Pony.Cell.PIXELS, Color.YELLOW, Color.GREEN, null);
+			pony.rows[y].set(x, Pony.Cell.PIXELS, Colour.rgb(255, 255, 0), Colour.rgb(0, 255, 0), null);
 	/**/
 	return pony;
     }
     
     
+    /**
+     * Import a test pony, the stream is not used
+     * 
+     * @param   in  Ignored
+     * @return      The pony
+     * 
+     * @throws  IOException  On I/O error
+     */
+    public Pony importPony(InputStream in) throws IOException
+    {
+	return this.importPony();
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canImportRows()
+    {
+	return this.generate;
+    }
+    
+    
+    /**
+     * Generate a pony one row at the time, the stream is not used
+     * 
+     * @param   in    Ignored
+     * @param   sink  Receiver of the rows, {@link RowSink#end()} is called at the end
+     * 
+     * @throws  IOException  On I/O error
+     */
+    @Override
+    public void importRows(InputStream in, RowSink sink) throws IOException
+    {
+	this.importRows(sink);
+    }
+    
+    
+    /**
+     * Generate a pony one row at the time
+     * 
+     * @param   sink  Receiver of the rows, {@link RowSink#end()} is called at the end
+     * 
+     * @throws  IOException  On I/O error
+     */
+    @Override
+    public void importRows(RowSink sink) throws IOException
+    {
+	Random random = new Random(this.seed);
+	int w = this.width;
+	
+	int[] palette = new int[this.colours];
+	HashSet<Integer> used = new HashSet<Integer>();
+	for (int i = 0; i < palette.length;)
+	{   int rgb = random.nextInt(1 << 24);
+	    if (used.add(Integer.valueOf(rgb)))
+		palette[i++] = 0xFF000000 | rgb;
+	}
+	used = null;
+	
+	sink.begin("Generated pony", new String[][] {{"PONY", "test"}, {"SEED", Long.toString(this.seed)}});
+	for (int y = 0; y < this.height; y++)
+	{   Pony.Row row = new Pony.Row(w);
+	    Pony.Meta[][] metarow = new Pony.Meta[w + 1][];
+	    
+	    int upper = Colour.NONE, lower = Colour.NONE;
+	    boolean istext = false;
+	    for (int x = 0, run = 0; x < w; x++, run--)
+	    {   if (run <= 0)
+		{   run = 1 + random.nextInt((this.runs << 1) - 1);
+		    upper = palette[random.nextInt(palette.length)];
+		    lower = palette[random.nextInt(palette.length)];
+		    istext = random.nextDouble() < this.text;
+		}
+		if (istext)
+		    row.set(x, TEXT.charAt(random.nextInt(TEXT.length())), upper, lower, null);
+		else
+		    row.set(x, Pony.Cell.PIXELS, upper, lower, null);
+	    }
+	    
+	    if (this.meta > 0.0)
+		for (int x = 0; x <= w; x++)
+		    if (random.nextDouble() < this.meta)
+			metarow[x] = new Pony.Meta[] { this.generateMeta(random, palette) };
+	    
+	    sink.row(row, metarow);
+	}
+	sink.end();
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int scanWidth()
+    {
+	return this.generate ? this.width : -1;
+    }
+    
+    
+    /**
+     * Generate a recall, store, combining character or balloon, with equal probability
+     * 
+     * @param   random   The random number generator
+     * @param   palette  The colours to choose from
+     * @return           The metadata
+     */
+    private Pony.Meta generateMeta(Random random, int[] palette)
+    {
+	int foreground = palette[random.nextInt(palette.length)];
+	int background = palette[random.nextInt(palette.length)];
+	switch (random.nextInt(4))
+	{
+	    case 0:
+		return new Pony.Recall("var" + random.nextInt(8), foreground, background, null);
+	    case 1:
+		return new Pony.Store("var" + random.nextInt(8), TEXT.substring(0, 1 + random.nextInt(16)));
+	    case 2:
+		return new Pony.Combining(0x0300 + random.nextInt(0x70), foreground, background, null);
+	    default:
+		return new Pony.Balloon(null, null, null, null, null, null, Pony.Balloon.NONE);
+	}
+    }
+    
+    
     /**
      * Test a pony against a test pony
      * 
      * @param  pony  The pony
      */
+    @Override
     public void exportPony(Pony pony)
     {
     }
     
+    
+    /**
+     * Test a pony against a test pony, nothing is written
+     * 
+     * @param   pony  The pony
+     * @return        {@code null}
+     */
+    public byte[] encodePony(Pony pony)
+    {
+	this.exportPony(pony);
+	return null;
+    }
+    
 }
 
@@ -0,0 +1,547 @@
+/**
+ * util-say — Utilities for cowsay and cowsay-like programs
+ *
+ * Copyright © 2012, 2013  Mattias Andrée (m@maandree.se)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.utilsay;
+
+
+/**
+ * A rectangular window onto a {@link Pony}, used to add and remove margins and
+ * to insert a balloon without copying the pony's cells
+ * 
+ * <p>
+ *   Row <i>y</i> and column <i>x</i> in the viewport is row <i>y</i> + {@link #top}
+ *   and column <i>x</i> + {@link #left} in the pony. The window may extend outside
+ *   the pony, positions outside it are blank. On top of the pony the viewport can
+ *   have a balloon link, one {@link Pony.Cell#NNW_SSE} per row along a diagonal,
+ *   and a metacell that replaces the pony's at one position.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:m@maandree.se">m@maandree.se</a>
+ */
+public class Viewport
+{
+    /**
+     * Constructor, the viewport will cover the whole pony
+     * 
+     * @param  pony  The pony
+     */
+    public Viewport(Pony pony)
+    {
+	this.pony = pony;
+	this.height = pony.rows.length;
+	this.width = this.height == 0 ? 0 : pony.rows[0].width;
+    }
+    
+    
+    
+    /**
+     * The pony
+     */
+    public final Pony pony;
+    
+    /**
+     * The row in the pony that is the first row in the viewport, negative if the viewport has a top margin
+     */
+    public int top = 0;
+    
+    /**
+     * The column in the pony that is the first column in the viewport, negative if the viewport has a left margin
+     */
+    public int left = 0;
+    
+    /**
+     * The height of the viewport
+     */
+    public int height;
+    
+    /**
+     * The width of the viewport
+     */
+    public int width;
+    
+    /**
+     * Whether the pony is hidden, making the whole viewport blank
+     */
+    private boolean hidden = false;
+    
+    /**
+     * The first row with a balloon link
+     */
+    private int linkTop = 0;
+    
+    /**
+     * The row after the last row with a balloon link
+     */
+    private int linkBottom = 0;
+    
+    /**
+     * The column of the balloon link in a row minus the row
+     */
+    private int linkColumn = 0;
+    
+    /**
+     * The row of {@link #metacell}
+     */
+    private int metaY = 0;
+    
+    /**
+     * The column of {@link #metacell}
+     */
+    private int metaX = 0;
+    
+    /**
+     * Metacell that replaces the pony's at ({@link #metaY}, {@link #metaX}), {@code null} if none
+     */
+    private Pony.Meta[] metacell = null;
+    
+    
+    
+    /**
+     * Add margins to the viewport, negative margins crop the viewport instead
+     * 
+     * @param  left    The number of columns to add to the left
+     * @param  right   The number of columns to add to the right
+     * @param  top     The number of rows to add to the top
+     * @param  bottom  The number of rows to add to the bottom
+     */
+    public void pad(int left, int right, int top, int bottom)
+    {
+	this.top -= top;
+	this.left -= left;
+	this.height += top + bottom;
+	this.width += left + right;
+	this.linkTop += top;
+	this.linkBottom += top;
+	this.linkColumn += left - top;
+	this.metaY += top;
+	this.metaX += left;
+    }
+    
+    
+    /**
+     * Make the viewport blank, and resize it
+     * 
+     * @param  height  The new height of the viewport
+     * @param  width   The new width of the viewport
+     */
+    public void blank(int height, int width)
+    {
+	this.hidden = true;
+	this.top = this.left = 0;
+	this.height = height;
+	this.width = width;
+	this.linkTop = this.linkBottom = 0;
+	this.metacell = null;
+    }
+    
+    
+    /**
+     * Add a balloon link, a {@link Pony.Cell#NNW_SSE} at column <i>column</i> + <i>y</i>
+     * in each row <i>y</i> from <i>top</i>, inclusively, to <i>bottom</i>, exclusively
+     * 
+     * @param  column  The column of the link in row zero
+     * @param  top     The first row with the link
+     * @param  bottom  The row after the last row with the link
+     */
+    public void setLink(int column, int top, int bottom)
+    {
+	this.linkColumn = column;
+	this.linkTop = top;
+	this.linkBottom = bottom;
+    }
+    
+    
+    /**
+     * Replace a metacell
+     * 
+     * @param  y         The row
+     * @param  x         The column
+     * @param  metacell  The metacell
+     */
+    public void setMeta(int y, int x, Pony.Meta[] metacell)
+    {
+	this.metaY = y;
+	this.metaX = x;
+	this.metacell = metacell;
+    }
+    
+    
+    /**
+     * Get the pony's row that is shown in a row
+     * 
+     * @param   y  The row in the viewport
+     * @return     The pony's row, {@code null} if the row is outside the pony
+     */
+    public Pony.Row row(int y)
+    {
+	y += this.top;
+	if (this.hidden || (y < 0) || (y >= this.pony.rows.length))
+	    return null;
+	return this.pony.rows[y];
+    }
+    
+    
+    /**
+     * Get the column of the balloon link in a row
+     * 
+     * @param   y  The row
+     * @return     The column of the link, -1 if the row does not have a link
+     */
+    public int link(int y)
+    {
+	return (this.linkTop <= y) && (y < this.linkBottom) ? this.linkColumn + y : -1;
+    }
+    
+    
+    /**
+     * Check whether a position is part of the balloon link
+     * 
+     * @param   y  The row
+     * @param   x  The column
+     * @return     Whether the position is part of the link
+     */
+    private boolean isLink(int y, int x)
+    {
+	return (x >= 0) && (x == this.link(y));
+    }
+    
+    
+    /**
+     * Get the character of a cell
+     * 
+     * @param   y  The row
+     * @param   x  The column
+     * @return     The character, see {@link Pony.Cell#character}, a blank space if there is no cell
+     */
+    public int getCharacter(int y, int x)
+    {
+	if (this.isLink(y, x))
+	    return Pony.Cell.NNW_SSE;
+	Pony.Row row = this.row(y);
+	x += this.left;
+	if ((row == null) || (x < 0) || (x >= row.width) || (row.isCell(x) == false))
+	    return ' ';
+	return row.characters[row.runOf(x)];
+    }
+    
+    
+    /**
+     * Get the flags of a cell
+     * 
+     * @param   y  The row
+     * @param   x  The column
+     * @return     The flags, see {@link Pony.Row#flags}, zero if there is no cell
+     */
+    public int getFlags(int y, int x)
+    {
+	if (this.isLink(y, x))
+	    return Pony.Row.CELL;
+	Pony.Row row = this.row(y);
+	x += this.left;
+	if ((row == null) || (x < 0) || (x >= row.width))
+	    return 0;
+	return row.flags[row.runOf(x)];
+    }
+    
+    
+    /**
+     * Get the upper colour of a cell
+     * 
+     * @param   y  The row
+     * @param   x  The column
+     * @return     The colour in ARGB, zero if none, see {@link #getFlags(int, int)}
+     */
+    public int getUpper(int y, int x)
+    {
+	if (this.isLink(y, x))
+	    return 0;
+	Pony.Row row = this.row(y);
+	x += this.left;
+	if ((row == null) || (x < 0) || (x >= row.width))
+	    return 0;
+	return row.upper[row.runOf(x)];
+    }
+    
+    
+    /**
+     * Get the lower colour of a cell
+     * 
+     * @param   y  The row
+     * @param   x  The column
+     * @return     The colour in ARGB, zero if none, see {@link #getFlags(int, int)}
+     */
+    public int getLower(int y, int x)
+    {
+	if (this.isLink(y, x))
+	    return 0;
+	Pony.Row row = this.row(y);
+	x += this.left;
+	if ((row == null) || (x < 0) || (x >= row.width))
+	    return 0;
+	return row.lower[row.runOf(x)];
+    }
+    
+    
+    /**
+     * Check whether a position is blank, see {@link Pony.Row#isBlank(int)}
+     * 
+     * @param   y  The row
+     * @param   x  The column
+     * @return     Whether the position is blank
+     */
+    public boolean isBlank(int y, int x)
+    {
+	if (this.isLink(y, x))
+	    return false;
+	Pony.Row row = this.row(y);
+	x += this.left;
+	return (row == null) || (x < 0) || (x >= row.width) || row.isBlank(x);
+    }
+    
+    
+    /**
+     * Check whether a position stops a margin from growing into it, that is,
+     * whether it has a visible cell, or a balloon, or other metadata than stores
+     * 
+     * @param   y  The row
+     * @param   x  The column
+     * @return     Whether the position is part of the pony
+     */
+    public boolean isSolid(int y, int x)
+    {
+	return isSolid(this.isBlank(y, x), this.getMeta(y, x));
+    }
+    
+    
+    /**
+     * Check whether a position stops a margin from growing into it, see {@link #isSolid(int, int)}
+     * 
+     * @param   blank     Whether the cell is blank, see {@link Pony.Row#isBlank(int)}
+     * @param   metacell  The metacell, may be {@code null}
+     * @return            Whether the position is part of the pony
+     */
+    public static boolean isSolid(boolean blank, Pony.Meta[] metacell)
+    {
+	if ((metacell != null) && (metacell.length != 0))
+	{   for (int k = 0, l = metacell.length; k < l; k++)
+		if ((metacell[k] != null) && ((metacell[k] instanceof Pony.Store) == false))
+		    if ((blank == false) || (metacell[k] instanceof Pony.Balloon))
+			return true;
+	    return false;
+	}
+	return blank == false;
+    }
+    
+    
+    /**
+     * Get the first solid column in a row, see {@link #isSolid(int, int)}
+     * 
+     * <p>
+     *   Only the first cells that are not blank and the metacells need to be
+     *   checked, so this does not depend on the width of the viewport.
+     * </p>
+     * 
+     * @param   y  The row
+     * @return     The column, -1 if no column in the row is solid
+     */
+    public int firstSolid(int y)
+    {
+	Pony.MetaIndex metadata = this.pony.metadata;
+	int py = y + this.top;
+	int i = this.hidden ? 0 : metadata.find(py, Math.max(0, this.left));
+	int e = this.hidden ? 0 : metadata.find(py + 1, 0);
+	int corner = ((this.metacell != null) && (y == this.metaY) && (0 <= this.metaX) && (this.metaX < this.width)) ? this.metaX : -1;
+	int cell = this.nextVisible(y, 0);
+	for (;;)
+	{   int meta = (i < e) && (metadata.columnAt(i) - this.left < this.width) ? metadata.columnAt(i) - this.left : -1;
+	    int x = -1;
+	    if ((cell >= 0) && ((x < 0) || (cell < x)))  x = cell;
+	    if ((meta >= 0) && ((x < 0) || (meta < x)))  x = meta;
+	    if ((corner >= 0) && ((x < 0) || (corner < x)))  x = corner;
+	    if ((x < 0) || this.isSolid(y, x))
+		return x;
+	    if (cell == x)  cell = this.nextVisible(y, x + 1);
+	    if (meta == x)  i++;
+	    if (corner == x)  corner = -1;
+	}
+    }
+    
+    
+    /**
+     * Get the last solid column in a row, see {@link #firstSolid(int)}
+     * 
+     * @param   y  The row
+     * @return     The column, -1 if no column in the row is solid
+     */
+    public int lastSolid(int y)
+    {
+	Pony.MetaIndex metadata = this.pony.metadata;
+	int py = y + this.top;
+	int i = this.hidden ? -1 : metadata.find(py, Math.max(0, this.left + this.width)) - 1;
+	int s = this.hidden ? 0 : metadata.find(py, Math.max(0, this.left));
+	int corner = ((this.metacell != null) && (y == this.metaY) && (0 <= this.metaX) && (this.metaX < this.width)) ? this.metaX : -1;
+	int cell = this.previousVisible(y, this.width - 1);
+	for (;;)
+	{   int meta = i >= s ? metadata.columnAt(i) - this.left : -1;
+	    int x = Math.max(cell, Math.max(meta, corner));
+	    if ((x < 0) || this.isSolid(y, x))
+		return x;
+	    if (cell == x)  cell = this.previousVisible(y, x - 1);
+	    if (meta == x)  i--;
+	    if (corner == x)  corner = -1;
+	}
+    }
+    
+    
+    /**
+     * Get the first column, from a column, that is not blank, see {@link #isBlank(int, int)}
+     * 
+     * @param   y  The row
+     * @param   x  The first column to check
+     * @return     The column, -1 if none
+     */
+    private int nextVisible(int y, int x)
+    {
+	if (x >= this.width)
+	    return -1;
+	int rc = -1, link = this.link(y);
+	Pony.Row row = this.row(y);
+	if (row != null)
+	{   int px = row.nextNonBlank(Math.max(x + this.left, 0));
+	    if ((px >= 0) && (px - this.left < this.width))
+		rc = px - this.left;
+	}
+	if ((link >= x) && (link < this.width) && ((rc < 0) || (link < rc)))
+	    rc = link;
+	return rc;
+    }
+    
+    
+    /**
+     * Get the last column, up to a column, that is not blank, see {@link #isBlank(int, int)}
+     * 
+     * @param   y  The row
+     * @param   x  The last column to check
+     * @return     The column, -1 if none
+     */
+    private int previousVisible(int y, int x)
+    {
+	if (x < 0)
+	    return -1;
+	int rc = -1, link = this.link(y);
+	Pony.Row row = this.row(y);
+	if ((row != null) && (x + this.left >= 0))
+	{   int px = row.previousNonBlank(Math.min(x + this.left, row.width - 1));
+	    if ((px >= 0) && (px - this.left >= 0))
+		rc = px - this.left;
+	}
+	if ((0 <= link) && (link <= x) && (link < this.width) && (link > rc))
+	    rc = link;
+	return rc;
+    }
+    
+    
+    /**
+     * Get a metacell
+     * 
+     * @param   y  The row
+     * @param   x  The column, the metacell at column {@link #width} is after the last cell
+     * @return     The metacell, {@code null} if none
+     */
+    public Pony.Meta[] getMeta(int y, int x)
+    {
+	if ((this.metacell != null) && (y == this.metaY) && (x == this.metaX))
+	    return this.metacell;
+	if (this.hidden || (x < 0) || (x > this.width))
+	    return null;
+	return this.pony.metadata.get(y + this.top, x + this.left);
+    }
+    
+    
+    /**
+     * Get the metacells in a row as an array
+     * 
+     * @param   y        The row
+     * @param   metarow  The array to fill, it is cleared first, positions outside it are ignored
+     * @return           {@code metarow}
+     */
+    public Pony.Meta[][] getMetaRow(int y, Pony.Meta[][] metarow)
+    {
+	java.util.Arrays.fill(metarow, null);
+	if (this.hidden == false)
+	{   Pony.MetaIndex metadata = this.pony.metadata;
+	    int py = y + this.top, end = Math.min(this.width, metarow.length - 1);
+	    for (int i = metadata.find(py, Math.max(0, this.left)), e = metadata.find(py + 1, 0); i < e; i++)
+	    {   int x = metadata.columnAt(i) - this.left;
+		if (x > end)
+		    break;
+		if (x >= 0)
+		    metarow[x] = metadata.valueAt(i);
+	}   }
+	if ((this.metacell != null) && (y == this.metaY) && (0 <= this.metaX) && (this.metaX < metarow.length))
+	    metarow[this.metaX] = this.metacell;
+	return metarow;
+    }
+    
+    
+    /**
+     * Create a pony with the contents of the viewport, rows that
+     * do not need to change are shared with the viewed pony
+     * 
+     * @return  The pony
+     */
+    public Pony toPony()
+    {
+	Pony source = this.pony.clone();
+	Pony rc = new Pony(0, 0, source.comment, source.tags);
+	rc.height = this.height;
+	rc.width = this.width;
+	rc.rows = new Pony.Row[this.height];
+	
+	for (int y = 0; y < this.height; y++)
+	{   int py = y + this.top;
+	    Pony.Row row = (this.hidden || (py < 0) || (py >= source.rows.length)) ? null : source.rows[py];
+	    if (row == null)
+		rc.rows[y] = new Pony.Row(this.width);
+	    else if ((this.left == 0) && (row.width == this.width))
+		rc.rows[y] = row;
+	    else
+		rc.rows[y] = row.resize(-this.left, this.width);
+	    int link = this.link(y);
+	    if ((link >= 0) && (link < this.width))
+		rc.writableRow(y).set(link, Pony.Cell.NNW_SSE, Colour.NONE, Colour.NONE, null);
+	}
+	
+	if ((this.hidden == false) && (this.top == 0) && (this.left == 0) && (this.metacell == null))
+	    rc.metadata = source.metadata;
+	else
+	{   Pony.MetaIndex metadata = rc.metadata = new Pony.MetaIndex();
+	    if (this.hidden == false)
+		for (int i = 0, n = source.metadata.size(); i < n; i++)
+		{   int y = source.metadata.rowAt(i) - this.top;
+		    int x = source.metadata.columnAt(i) - this.left;
+		    if ((0 <= y) && (y < this.height) && (0 <= x) && (x <= this.width))
+			metadata.put(y, x, source.metadata.valueAt(i));
+		}
+	    if (this.metacell != null)
+		metadata.put(this.metaY, this.metaX, this.metacell);
+	}
+	return rc;
+    }
+    
+}